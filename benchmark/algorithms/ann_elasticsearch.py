@@ -33,12 +33,10 @@ class ANNElasticsearch(BaseANN):
                 'ivfpq_query': {
                     'query': ','.join(map(str, v)),
                     'fields': ['vector'],
-                    'nprobe': self.n_probe
+                    'nprobe': self.n_probe,
+                    'size': n
                 }
             },
-            "sort": [
-                {"_score": {"order": "asc"}},
-            ],
             'size': n
         })
         return [int(hit['_id']) for hit in response['hits']['hits']]
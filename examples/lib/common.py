@@ -1,4 +1,8 @@
+import struct
+import zlib
+
 import faiss
+import numpy
 
 
 def fit_pq_params(xb, d, nlist, m):
@@ -10,6 +14,30 @@ def fit_pq_params(xb, d, nlist, m):
     return coarse_centroids, pq_centroids, index.pq.ksub, index.pq.dsub
 
 
+def fit_opq_params(xb, d, nlist, m):
+    """Like fit_pq_params, with an OPQ rotation trained first and returned as the row-major matrix R of x R."""
+    opq = faiss.OPQMatrix(d, m)
+    opq.train(xb)
+    rotation = faiss.vector_to_array(opq.A).reshape(d, d).T
+    coarse_centroids, pq_centroids, ksub, dsub = fit_pq_params(xb.dot(rotation), d, nlist, m)
+    return rotation.ravel().tolist(), coarse_centroids, pq_centroids, ksub, dsub
+
+
+def write_codebook(path, d, m, ksub, coarse_centroids, pq_centroids, rotation=None):
+    """Writes centroids in the codebook file format of the ivfpq_analyzer and returns its checksum."""
+    nlist = len(coarse_centroids) // d
+    content = struct.pack('<6i', 0x49565051, 1 if rotation is None else 2, d, m, ksub, nlist)
+    if rotation is not None:
+        content += numpy.asarray(rotation, dtype='<f4').tobytes()
+    content += numpy.asarray(coarse_centroids, dtype='<f4').tobytes()
+    content += numpy.asarray(pq_centroids, dtype='<f4').tobytes()
+    checksum = zlib.crc32(content) & 0xffffffff
+    with open(path, 'wb') as f:
+        f.write(content)
+        f.write(struct.pack('<q', checksum))
+    return checksum
+
+
 class SearchClient(object):
 
     def __init__(self, client, index_name, type_name):
@@ -34,10 +62,10 @@ class SearchClient(object):
             'query': {
                 'ivfpq_query': {
                     'query': ','.join(map(str, feat)),
-                    'fields': ['vector']
+                    'fields': ['vector'],
+                    'size': result_size
                 }
             },
-            'sort': {'_score': {'order': 'asc'}},
             'size': result_size
         }
         response = self.client.search(self.index_name, body=query)
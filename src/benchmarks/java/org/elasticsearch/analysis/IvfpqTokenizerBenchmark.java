@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.ann.ArrayUtils;
+import org.elasticsearch.ann.ExactSearch;
+import org.elasticsearch.ann.ProductQuantizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes one comma separated vector per invocation. {@link #encode()} parses it and calls
+ * {@link IvfpqAnalyzer#encode}, as the field mapper does to index vectors without the tokenizer,
+ * {@link #analyze()} goes through the tokenizer as analyzing the field's text does. Run with
+ * {@code -prof gc} to see the allocation rate per vector.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IvfpqTokenizerBenchmark {
+
+    @Param({"128", "768"})
+    int d;
+
+    @Param({"1024"})
+    int nlist;
+
+    @Param({"256"})
+    int ksub;
+
+    private IvfpqAnalyzer analyzer;
+
+    private String[] vectors;
+
+    private byte[] codes;
+
+    private int vector;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        final int m = d / 8;
+        float[] coarseCentroids = new float[nlist * d];
+        for (int i = 0; i < coarseCentroids.length; ++i) {
+            coarseCentroids[i] = random.nextFloat();
+        }
+        float[] pqCentroids = new float[ksub * d];
+        for (int i = 0; i < pqCentroids.length; ++i) {
+            pqCentroids[i] = random.nextFloat() - 0.5F;
+        }
+        analyzer = new IvfpqAnalyzer(new ExactSearch(d, coarseCentroids),
+                new ProductQuantizer(d, m, ksub, pqCentroids));
+        codes = new byte[analyzer.getProductQuantizer().getCodeSize()];
+        vectors = new String[64];
+        for (int i = 0; i < vectors.length; ++i) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < d; ++j) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append(random.nextDouble());
+            }
+            vectors[i] = sb.toString();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+    }
+
+    @Benchmark
+    public int encode() {
+        float[] features = analyzer.vectorBuffer();
+        ArrayUtils.parseFloatArrayCsv(vectors[vector++ & (vectors.length - 1)], features);
+        return analyzer.encode(features, codes, 0);
+    }
+
+    @Benchmark
+    public int analyze() throws IOException {
+        int length = 0;
+        try (TokenStream tokenStream = analyzer.tokenStream("vector", vectors[vector++ & (vectors.length - 1)])) {
+            CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                length += term.length();
+            }
+            tokenStream.end();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance kernels and the matrix operations k-means training is built on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AlgebraicOpsBenchmark {
+
+    private static final int BLOCK = 64;
+
+    @Param({"128", "768"})
+    int d;
+
+    @Param({"1024"})
+    int n;
+
+    private float[] x;
+
+    private float[] y;
+
+    private float[] xblock;
+
+    private float[] transposed;
+
+    private float[] products;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        x = new float[d];
+        for (int i = 0; i < d; ++i) {
+            x[i] = random.nextFloat();
+        }
+        y = new float[n * d];
+        for (int i = 0; i < y.length; ++i) {
+            y[i] = random.nextFloat();
+        }
+        xblock = new float[BLOCK * d];
+        System.arraycopy(y, 0, xblock, 0, xblock.length);
+        transposed = new float[n * d];
+        AlgebraicOps.transpose(y, transposed, n, d);
+        products = new float[BLOCK * n];
+    }
+
+    @Benchmark
+    public float l2distance() {
+        return AlgebraicOps.l2distance(x, 0, y, 0, d);
+    }
+
+    @Benchmark
+    public float dot() {
+        return AlgebraicOps.dot(x, 0, y, 0, d);
+    }
+
+    @Benchmark
+    public int findNearest() {
+        return AlgebraicOps.findNearest(x, y, n, d);
+    }
+
+    @Benchmark
+    public float[] transpose() {
+        AlgebraicOps.transpose(y, transposed, n, d);
+        return transposed;
+    }
+
+    /**
+     * Products of a block of {@value #BLOCK} vectors with {@code n} centroids, as in the k-means
+     * assignment step.
+     */
+    @Benchmark
+    public float[] multiply() {
+        AlgebraicOps.multiply(xblock, transposed, products, BLOCK, n, d);
+        return products;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and encoding of vectors on the indexing and query paths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArrayUtilsBenchmark {
+
+    @Param({"128", "768"})
+    int d;
+
+    private float[] vector;
+
+    private byte[] bytes;
+
+    private String csv;
+
+    private String base64;
+
+    private float[] decoded;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        vector = new float[d];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < d; ++i) {
+            vector[i] = random.nextFloat();
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(vector[i]);
+        }
+        csv = sb.toString();
+        bytes = ArrayUtils.encodeFloatArray(vector);
+        base64 = Base64.getEncoder().encodeToString(bytes);
+        decoded = new float[d];
+    }
+
+    @Benchmark
+    public float[] parseCsv() {
+        return ArrayUtils.parseFloatArrayCsv(csv);
+    }
+
+    @Benchmark
+    public float[] parseBase64() {
+        return ArrayUtils.parseFloatArray(base64);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return ArrayUtils.encodeFloatArray(vector);
+    }
+
+    @Benchmark
+    public float[] decode() {
+        ArrayUtils.decodeFloatArray(bytes, 0, bytes.length, decoded);
+        return decoded;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Top-nprobe centroid selection with a bounded heap against sorting every distance, and against
+ * searching an HNSW graph over the centroids. The batch benchmarks search {@code BATCH} vectors
+ * per operation, one by one and with a single matrix product.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExactSearchBenchmark {
+
+    @Param({"128"})
+    int d;
+
+    @Param({"1024", "16384", "65536"})
+    int nlist;
+
+    @Param({"1", "16", "128"})
+    int nprobe;
+
+    private float[] centroids;
+
+    private static final int BATCH = 256;
+
+    private float[] feature;
+
+    private float[] batch;
+
+    private ExactSearch exactSearch;
+
+    private HnswSearch hnswSearch;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        centroids = new float[nlist * d];
+        for (int i = 0; i < centroids.length; ++i) {
+            centroids[i] = random.nextFloat();
+        }
+        feature = new float[d];
+        for (int i = 0; i < d; ++i) {
+            feature[i] = random.nextFloat();
+        }
+        batch = new float[BATCH * d];
+        for (int i = 0; i < batch.length; ++i) {
+            batch[i] = random.nextFloat();
+        }
+        exactSearch = new ExactSearch(d, centroids);
+        hnswSearch = new HnswSearch(d, centroids, 16, 100, 128, 0);
+    }
+
+    @Benchmark
+    public int[] hnsw() {
+        return hnswSearch.searchNearest(feature, nprobe);
+    }
+
+    @Benchmark
+    public int nearest() {
+        return exactSearch.searchNearest(feature);
+    }
+
+    @Benchmark
+    public int[] boundedHeap() {
+        return exactSearch.searchNearest(feature, nprobe);
+    }
+
+    @Benchmark
+    public int[][] batchOneByOne() {
+        int[][] nearest = new int[BATCH][];
+        float[] vector = new float[d];
+        for (int i = 0; i < BATCH; ++i) {
+            System.arraycopy(batch, i * d, vector, 0, d);
+            nearest[i] = exactSearch.searchNearest(vector, nprobe);
+        }
+        return nearest;
+    }
+
+    @Benchmark
+    public int[][] batchMultiply() {
+        return exactSearch.searchNearest(batch, BATCH, nprobe);
+    }
+
+    @Benchmark
+    public int[] fullSort() {
+        float[] distances = new float[nlist];
+        AlgebraicOps.l2distance(centroids, feature, distances, nlist, d);
+        long[] encoded = new long[nlist];
+        for (int i = 0; i < nlist; ++i) {
+            encoded[i] = (((long) Float.floatToIntBits(distances[i])) << 32) | (i & 0xffffffffL);
+        }
+        Arrays.sort(encoded);
+        int[] result = new int[Math.min(nprobe, nlist)];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = (int) encoded[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance table construction, encoding and asymmetric distance computation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProductQuantizerBenchmark {
+
+    @Param({"128", "768"})
+    int d;
+
+    @Param({"16", "64"})
+    int m;
+
+    @Param({"16", "256"})
+    int ksub;
+
+    private ProductQuantizer pq;
+
+    private float[] feature;
+
+    private float[] codeTable;
+
+    private byte[] codes;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        float[] pqCentroids = new float[ksub * d];
+        for (int i = 0; i < pqCentroids.length; ++i) {
+            pqCentroids[i] = random.nextFloat();
+        }
+        pq = new ProductQuantizer(d, m, ksub, pqCentroids);
+        feature = new float[d];
+        for (int i = 0; i < d; ++i) {
+            feature[i] = random.nextFloat();
+        }
+        codeTable = pq.getCodeTable(feature);
+        codes = pq.encode(pq.getCodes(feature));
+    }
+
+    @Benchmark
+    public float[] getCodeTable() {
+        return pq.getCodeTable(feature);
+    }
+
+    @Benchmark
+    public short[] getCodes() {
+        return pq.getCodes(feature);
+    }
+
+    @Benchmark
+    public float getDistance() {
+        return pq.getDistance(codeTable, codes, 0, codes.length);
+    }
+}
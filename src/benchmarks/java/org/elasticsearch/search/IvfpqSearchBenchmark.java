@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.analysis.IvfpqAnalyzer;
+import org.elasticsearch.ann.AlgebraicOps;
+import org.elasticsearch.ann.Codebook;
+import org.elasticsearch.ann.ExactSearch;
+import org.elasticsearch.ann.IvfpqTrainer;
+import org.elasticsearch.ann.ProductQuantizer;
+import org.elasticsearch.mapper.IvfpqFieldMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexes {@code n} clustered synthetic vectors the way the {@code ivfpq} mapper does with
+ * {@code doc_values} codes and measures the query throughput of the top-k query. The recall@k
+ * against exact search is printed once per trial, since throughput alone hides a change that
+ * trades accuracy for speed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IvfpqSearchBenchmark {
+
+    private static final String FIELD = "vector";
+
+    private static final int QUERIES = 100;
+
+    private static final int K = 10;
+
+    @Param({"100000"})
+    int n;
+
+    @Param({"64"})
+    int d;
+
+    @Param({"256"})
+    int nlist;
+
+    @Param({"16"})
+    int m;
+
+    @Param({"256"})
+    int ksub;
+
+    @Param({"1", "8", "32"})
+    int nprobe;
+
+    private Directory directory;
+
+    private DirectoryReader reader;
+
+    private IndexSearcher searcher;
+
+    private IvfpqAnalyzer analyzer;
+
+    private float[][] queries;
+
+    private int query;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        float[] clusters = new float[1000 * d];
+        for (int i = 0; i < clusters.length; ++i) {
+            clusters[i] = random.nextFloat();
+        }
+        float[] vectors = new float[n * d];
+        for (int i = 0; i < n; ++i) {
+            final int cluster = random.nextInt(1000);
+            for (int j = 0; j < d; ++j) {
+                vectors[i * d + j] = clusters[cluster * d + j] + (float) random.nextGaussian() * 0.1F;
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool();
+        Codebook codebook;
+        try {
+            codebook = new IvfpqTrainer(d, nlist, m, ksub, 10, 0).train(vectors, Math.min(n, 20000), pool);
+        } finally {
+            pool.shutdown();
+        }
+        analyzer = new IvfpqAnalyzer(new ExactSearch(d, codebook.getCoarseCentroids()),
+                new ProductQuantizer(d, m, ksub, codebook.getPqCentroids()));
+
+        directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            float[] vector = new float[d];
+            for (int i = 0; i < n; ++i) {
+                System.arraycopy(vectors, i * d, vector, 0, d);
+                final int coarseCenter = analyzer.getCoarseCenter(vector);
+                Document document = new Document();
+                document.add(new StringField(FIELD, String.valueOf(coarseCenter), Field.Store.NO));
+                document.add(new BinaryDocValuesField(IvfpqFieldMapper.getCodesField(FIELD),
+                        new BytesRef(analyzer.getCodes(coarseCenter, vector))));
+                writer.addDocument(document);
+            }
+            writer.forceMerge(1);
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+
+        queries = new float[QUERIES][d];
+        for (float[] q : queries) {
+            final int source = random.nextInt(n);
+            for (int j = 0; j < d; ++j) {
+                q[j] = vectors[source * d + j] + (float) random.nextGaussian() * 0.1F;
+            }
+        }
+        System.out.println();
+        System.out.println("recall@" + K + " at nprobe " + nprobe + ": " + recall(vectors));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public TopDocs search() throws IOException {
+        float[] q = queries[query++ % QUERIES];
+        return searcher.search(IvfpqQuery.createFieldQuery(FIELD, analyzer, q, nprobe, K, 0, ScoreMode.SIMILARITY,
+                null, nprobe, 0, null, null, null, null), K);
+    }
+
+    private double recall(float[] vectors) throws IOException {
+        int found = 0;
+        float[] distances = new float[n];
+        for (float[] q : queries) {
+            Arrays.fill(distances, 0);
+            AlgebraicOps.l2distance(vectors, q, distances, n, d);
+            long[] encoded = new long[n];
+            for (int i = 0; i < n; ++i) {
+                encoded[i] = ((long) Float.floatToIntBits(distances[i]) << 32) | i;
+            }
+            Arrays.sort(encoded);
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < K; ++i) {
+                expected.add((int) encoded[i]);
+            }
+            TopDocs topDocs = searcher.search(IvfpqQuery.createFieldQuery(FIELD, analyzer, q, nprobe, K, 0,
+                    ScoreMode.SIMILARITY, null, nprobe, 0, null, null, null, null), K);
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                if (expected.contains(scoreDoc.doc)) {
+                    found++;
+                }
+            }
+        }
+        return (double) found / (QUERIES * K);
+    }
+}
@@ -14,11 +14,16 @@
 package org.elasticsearch.analysis;
 
 import org.apache.lucene.util.Attribute;
+import org.apache.lucene.util.BytesRef;
 
 public interface CodeAttribute extends Attribute {
 
-    short[] getCodes();
+    /**
+     * Returns the product quantization codes in the encoding of
+     * {@link org.elasticsearch.ann.ProductQuantizer#encode(short[])}.
+     */
+    BytesRef getCodes();
 
-    void setCodes(short[] codes);
+    void setCodes(BytesRef codes);
 
 }
@@ -15,19 +15,20 @@ package org.elasticsearch.analysis;
 
 import org.apache.lucene.util.AttributeImpl;
 import org.apache.lucene.util.AttributeReflector;
+import org.apache.lucene.util.BytesRef;
 
 
 public class CodeAttributeImpl extends AttributeImpl implements CodeAttribute, Cloneable {
 
-    private short[] codes;
+    private BytesRef codes;
 
     @Override
-    public short[] getCodes() {
+    public BytesRef getCodes() {
         return codes;
     }
 
     @Override
-    public void setCodes(short[] codes) {
+    public void setCodes(BytesRef codes) {
         this.codes = codes;
     }
 
@@ -44,7 +45,7 @@ public class CodeAttributeImpl extends AttributeImpl implements CodeAttribute, C
     @Override
     public void copyTo(AttributeImpl target) {
         CodeAttribute codeAttribute = (CodeAttribute) target;
-        codeAttribute.setCodes(codes);
-
+        // the tokenizer reuses its codes buffer for every vector
+        codeAttribute.setCodes(codes == null ? null : BytesRef.deepCopyOf(codes));
     }
 }
@@ -15,33 +15,264 @@ package org.elasticsearch.analysis;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.Tokenizer;
-import org.elasticsearch.ann.ExactSearch;
+import org.apache.lucene.util.CloseableThreadLocal;
+import org.elasticsearch.ann.AlgebraicOps;
+import org.elasticsearch.ann.CoarseQuantizer;
+import org.elasticsearch.ann.Metric;
 import org.elasticsearch.ann.ProductQuantizer;
+import org.elasticsearch.common.lease.Releasable;
 
+import java.util.concurrent.atomic.AtomicLong;
 
 public class IvfpqAnalyzer extends Analyzer {
 
-    private ExactSearch cq;
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final long id = IDS.incrementAndGet();
+
+    private CoarseQuantizer cq;
 
     private ProductQuantizer pq;
 
-    public IvfpqAnalyzer(ExactSearch cq, ProductQuantizer pq) {
+    /**
+     * Row-major {@code d * d} matrix {@code R} that vectors are rotated with before they are
+     * quantized, {@code x R} for a row vector {@code x}, as in optimized product quantization, or
+     * {@code null}.
+     */
+    private final float[] rotation;
+
+    /**
+     * Released when the analyzer is closed, e.g. its reference to shared quantizers, or {@code null}.
+     */
+    private final Releasable onClose;
+
+    /**
+     * Per-thread residual buffer, so that encoding a vector or building a distance table only
+     * allocates its result.
+     */
+    private final CloseableThreadLocal<float[]> residuals = new CloseableThreadLocal<>();
+
+    /**
+     * Per-thread buffers for a vector and its rotation, see {@link #vectorBuffer()}.
+     */
+    private final CloseableThreadLocal<float[][]> vectors = new CloseableThreadLocal<>();
+
+    public IvfpqAnalyzer(CoarseQuantizer cq, ProductQuantizer pq) {
+        this(cq, pq, null);
+    }
+
+    public IvfpqAnalyzer(CoarseQuantizer cq, ProductQuantizer pq, float[] rotation) {
+        this(cq, pq, rotation, null);
+    }
+
+    public IvfpqAnalyzer(CoarseQuantizer cq, ProductQuantizer pq, float[] rotation, Releasable onClose) {
+        if (rotation != null && rotation.length != cq.getDimension() * cq.getDimension()) {
+            throw new IllegalArgumentException("rotation has [" + rotation.length + "] values but ["
+                    + cq.getDimension() * cq.getDimension() + "] are expected");
+        }
         this.cq = cq;
         this.pq = pq;
+        this.rotation = rotation;
+        this.onClose = onClose;
     }
 
     @Override
     protected TokenStreamComponents createComponents(String fieldName) {
-        Tokenizer tokenizer = new IvfpqTokenizer(cq, pq);
+        Tokenizer tokenizer = new IvfpqTokenizer(this);
         return new TokenStreamComponents(tokenizer);
     }
 
+    /**
+     * Returns a number that identifies this analyzer and its quantizers within the node.
+     */
+    public long getId() {
+        return id;
+    }
+
+    public int getDimension() {
+        return cq.getDimension();
+    }
+
+    public Metric getMetric() {
+        return cq.getMetric();
+    }
+
+    /**
+     * Normalizes the vector in place to unit length when the metric is cosine. Vectors have to go
+     * through this before they are encoded or searched.
+     */
+    public void normalize(float[] features) {
+        if (cq.getMetric().normalizes()) {
+            AlgebraicOps.normalize(features, 1, features.length);
+        }
+    }
+
+    public boolean hasRotation() {
+        return rotation != null;
+    }
+
+    /**
+     * Returns the vector in the space of the quantizers: the vector itself without a rotation, a
+     * rotated copy otherwise. Vectors go through this after {@link #normalize} and before they are
+     * passed to the other methods.
+     */
+    public float[] rotate(float[] features) {
+        return rotation == null ? features : rotate(features, 1);
+    }
+
+    /**
+     * Writes the rotated vector to {@code rotated}, which must not be {@code features}, see
+     * {@link #rotate(float[])}. Only to be called when there is a rotation.
+     */
+    public void rotate(float[] features, float[] rotated) {
+        AlgebraicOps.multiply(features, rotation, rotated, 1, rotated.length, features.length);
+    }
+
+    /**
+     * Like {@link #rotate(float[])}, but a rotated vector is written to a per-thread buffer that is
+     * overwritten by the next call on the same thread.
+     */
+    public float[] rotateToBuffer(float[] features) {
+        if (rotation == null) {
+            return features;
+        }
+        float[] rotated = vectorBuffers()[1];
+        rotate(features, rotated);
+        return rotated;
+    }
+
+    /**
+     * Returns the {@code n} vectors stored one after the other in {@code x} in the space of the
+     * quantizers, with a single matrix product when there is a rotation.
+     */
+    public float[] rotate(float[] x, int n) {
+        if (rotation == null) {
+            return x;
+        }
+        final int d = cq.getDimension();
+        float[] rotated = new float[n * d];
+        AlgebraicOps.multiply(x, rotation, rotated, n, d, d);
+        return rotated;
+    }
+
+    /**
+     * Returns the distance table for scanning the given inverted list, see
+     * {@link #getCodeTable(int, float[], float[])}.
+     */
+    public float[] getCodeTable(int coarseCenter, float[] features) {
+        float[] codeTable = new float[pq.getCodeTableSize()];
+        getCodeTable(coarseCenter, features, codeTable);
+        return codeTable;
+    }
+
+    /**
+     * Writes the distance table for scanning the given inverted list. Under L2 it is built from the
+     * query's residual to the list's centroid; inner product tables are built from the query itself
+     * and are the same for every list, with {@link #getBias} making up for the centroid.
+     */
+    public void getCodeTable(int coarseCenter, float[] features, float[] codeTable) {
+        if (cq.getMetric() == Metric.L2) {
+            float[] residual = residual();
+            cq.getResidual(coarseCenter, features, residual);
+            pq.getCodeTable(residual, codeTable);
+        } else {
+            pq.getInnerProductTable(features, codeTable);
+        }
+    }
+
+    /**
+     * Returns what has to be added to the distances looked up in the list's table: nothing under
+     * L2, the negated inner product between the query and the list's centroid otherwise.
+     */
+    public float getBias(int coarseCenter, float[] features) {
+        return cq.getMetric() == Metric.L2 ? 0 : cq.distance(coarseCenter, features);
+    }
+
+    /**
+     * Returns the coarse centroid the vector is assigned to, or {@code -1} if there is none.
+     */
+    public int getCoarseCenter(float[] features) {
+        return cq.searchNearest(features);
+    }
+
+    /**
+     * Returns the encoded product quantization codes of the vector's residual to its coarse centroid.
+     */
+    public byte[] getCodes(int coarseCenter, float[] features) {
+        byte[] codes = new byte[pq.getCodeSize()];
+        getCodes(coarseCenter, features, codes, 0);
+        return codes;
+    }
+
+    /**
+     * Writes the {@link ProductQuantizer#getCodeSize()} bytes of encoded codes of the vector's
+     * residual to its coarse centroid.
+     */
+    public void getCodes(int coarseCenter, float[] features, byte[] codes, int offset) {
+        float[] residual = residual();
+        cq.getResidual(coarseCenter, features, residual);
+        pq.quantize(residual, codes, offset);
+    }
+
+    /**
+     * Encodes a vector the way it is indexed: normalizes it in place, assigns it to a coarse
+     * centroid in the space of the quantizers and writes the {@link ProductQuantizer#getCodeSize()}
+     * bytes of its codes. Returns the centroid, which is the indexed term, or {@code -1} if there is
+     * none, in which case no codes are written.
+     */
+    public int encode(float[] features, byte[] codes, int offset) {
+        normalize(features);
+        float[] quantized = rotateToBuffer(features);
+        int coarseCenter = getCoarseCenter(quantized);
+        if (coarseCenter != -1) {
+            getCodes(coarseCenter, quantized, codes, offset);
+        }
+        return coarseCenter;
+    }
+
+    private float[] residual() {
+        float[] residual = residuals.get();
+        if (residual == null || residual.length != cq.getDimension()) {
+            residual = new float[cq.getDimension()];
+            residuals.set(residual);
+        }
+        return residual;
+    }
+
+    /**
+     * Returns a per-thread buffer of {@link #getDimension()} floats to read a vector into before it
+     * is encoded, so that indexing one vector at a time doesn't allocate it. The buffer is shared by
+     * all calls on the same thread.
+     */
+    public float[] vectorBuffer() {
+        return vectorBuffers()[0];
+    }
+
+    private float[][] vectorBuffers() {
+        float[][] buffers = vectors.get();
+        if (buffers == null) {
+            buffers = new float[2][cq.getDimension()];
+            vectors.set(buffers);
+        }
+        return buffers;
+    }
+
     public ProductQuantizer getProductQuantizer() {
         return pq;
     }
 
-    public ExactSearch getCoarseQuantizer() {
+    public CoarseQuantizer getCoarseQuantizer() {
         return cq;
     }
 
+    @Override
+    public void close() {
+        if (onClose != null) {
+            onClose.close();
+        }
+        residuals.close();
+        vectors.close();
+        super.close();
+    }
+
 }
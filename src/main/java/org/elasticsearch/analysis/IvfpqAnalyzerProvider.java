@@ -14,38 +14,148 @@
 package org.elasticsearch.analysis;
 
 import org.elasticsearch.ann.ArrayUtils;
+import org.elasticsearch.ann.CoarseQuantizer;
+import org.elasticsearch.ann.Codebook;
 import org.elasticsearch.ann.ExactSearch;
+import org.elasticsearch.ann.HnswSearch;
+import org.elasticsearch.ann.Metric;
 import org.elasticsearch.ann.ProductQuantizer;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AbstractIndexAnalyzerProvider;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Locale;
+
 public class IvfpqAnalyzerProvider extends AbstractIndexAnalyzerProvider<IvfpqAnalyzer> {
 
-    private ProductQuantizer pq;
+    /**
+     * Directory under the node's config directory that codebook files are loaded from.
+     */
+    public static final String CODEBOOK_DIRECTORY = "ann";
 
-    private ExactSearch cq;
+    private IvfpqAnalyzer analyzer;
 
+    /**
+     * Creates the analyzer on quantizers shared through the registry with the other analyzers of
+     * the node that use the same codebook and quantizer settings. Codebooks are told apart by the
+     * digest of their content, so a codebook file is read for every analyzer, but the quantizers
+     * are only built when no other analyzer has built them yet. The reference is held until the
+     * index is removed from the node, see {@link QuantizerRegistry}.
+     */
     public IvfpqAnalyzerProvider(IndexSettings indexSettings, Environment environment, String name,
-                                 Settings settings) {
+                                 Settings settings, QuantizerRegistry registry) {
         super(indexSettings, name, settings);
-        loadSettings(settings);
+        Codebook codebook;
+        if (settings.get("codebook") != null) {
+            Long checksum = settings.getAsLong("codebook_checksum", null);
+            if (checksum == null) {
+                throw new IllegalArgumentException("[codebook_checksum] is required with [codebook] for analyzer ["
+                        + name() + "]");
+            }
+            codebook = loadCodebook(environment, settings, checksum);
+        } else {
+            codebook = parseCodebook(settings);
+        }
+        QuantizerRegistry.Reference reference = registry.acquire(registryKey(codebook, settings), indexSettings,
+                () -> createQuantizers(settings, codebook));
+        QuantizerRegistry.Quantizers quantizers = reference.get();
+        analyzer = new IvfpqAnalyzer(quantizers.getCoarseQuantizer(), quantizers.getProductQuantizer(),
+                quantizers.getRotation(), reference);
     }
 
     @Override
     public IvfpqAnalyzer get() {
-        return new IvfpqAnalyzer(cq, pq);
+        return analyzer;
+    }
+
+    /**
+     * Identifies the codebook and the settings the quantizers are built with.
+     */
+    private static String registryKey(Codebook codebook, Settings settings) {
+        StringBuilder key = new StringBuilder().append(codebook.getDigest())
+                .append('/').append(settings.get("metric", "l2").toLowerCase(Locale.ROOT))
+                .append('/').append(settings.get("coarse_quantizer", "exact").toLowerCase(Locale.ROOT));
+        if ("hnsw".equalsIgnoreCase(settings.get("coarse_quantizer"))) {
+            key.append('/').append(settings.getAsInt("hnsw_m", 16))
+                    .append('/').append(settings.getAsInt("hnsw_ef_construction", 100))
+                    .append('/').append(settings.getAsInt("hnsw_ef_search", 128))
+                    .append('/').append(settings.getAsLong("hnsw_seed", 0L));
+        }
+        return key.toString();
+    }
+
+    private QuantizerRegistry.Quantizers createQuantizers(Settings settings, Codebook codebook) {
+        int d = codebook.getDimension();
+        CoarseQuantizer cq = createCoarseQuantizer(settings, d, codebook.getCoarseCentroids());
+        ProductQuantizer pq = new ProductQuantizer(d, codebook.getM(), codebook.getKsub(), codebook.getPqCentroids());
+        return new QuantizerRegistry.Quantizers(cq, pq, codebook.getRotation());
     }
 
-    private void loadSettings(Settings settings) {
+    private static Codebook parseCodebook(Settings settings) {
         int m = settings.getAsInt("m", 0);
         int d = settings.getAsInt("d", 0);
         int ksub = settings.getAsInt("ksub", 0);
         float[] coarseCentroids = ArrayUtils.parseFloatArrayCsv(settings.get("coarseCentroids"));
         float[] pqCentroids = ArrayUtils.parseFloatArrayCsv(settings.get("pqCentroids"));
-        this.cq = new ExactSearch(d, coarseCentroids);
-        this.pq = new ProductQuantizer(d, m, ksub, pqCentroids);
+        float[] rotation = null;
+        if (settings.get("rotation") != null) {
+            rotation = ArrayUtils.parseFloatArrayCsv(settings.get("rotation"));
+        }
+        return new Codebook(d, m, ksub, rotation, coarseCentroids, pqCentroids);
     }
 
+    private Codebook loadCodebook(Environment environment, Settings settings, long checksum) {
+        String fileName = settings.get("codebook");
+        Path directory = environment.configFile().resolve(CODEBOOK_DIRECTORY).normalize();
+        Path path = directory.resolve(fileName).normalize();
+        if (!path.startsWith(directory)) {
+            throw new IllegalArgumentException("codebook [" + fileName + "] must be inside [" + directory + "]");
+        }
+        Codebook codebook;
+        try {
+            codebook = Codebook.read(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to load codebook [" + fileName + "] for analyzer ["
+                    + name() + "]", e);
+        }
+        if (codebook.getChecksum() != checksum) {
+            throw new IllegalArgumentException("codebook [" + fileName + "] has checksum [" + codebook.getChecksum()
+                    + "] but [" + checksum + "] was expected");
+        }
+        return codebook;
+    }
+
+    /**
+     * Creates the coarse quantizer chosen by the {@code coarse_quantizer} setting: {@code exact}
+     * compares with every centroid, {@code hnsw} searches a graph built over the centroids, which
+     * scales to large {@code nlist}. Both compare vectors with the {@code metric} setting.
+     */
+    private CoarseQuantizer createCoarseQuantizer(Settings settings, int d, float[] coarseCentroids) {
+        Metric metric = parseMetric(settings.get("metric", "l2"));
+        String type = settings.get("coarse_quantizer", "exact").toLowerCase(Locale.ROOT);
+        switch (type) {
+            case "exact":
+                return new ExactSearch(d, coarseCentroids, metric);
+            case "hnsw":
+                return new HnswSearch(d, coarseCentroids, settings.getAsInt("hnsw_m", 16),
+                        settings.getAsInt("hnsw_ef_construction", 100), settings.getAsInt("hnsw_ef_search", 128),
+                        settings.getAsLong("hnsw_seed", 0L), metric);
+            default:
+                throw new IllegalArgumentException("unknown [coarse_quantizer] [" + type + "] for analyzer ["
+                        + name() + "], expected [exact] or [hnsw]");
+        }
+    }
+
+    private Metric parseMetric(String value) {
+        try {
+            return Metric.fromString(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown [metric] [" + value + "] for analyzer [" + name()
+                    + "], expected [l2], [inner_product] or [cosine]");
+        }
+    }
 }
@@ -17,11 +17,12 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ann.ArrayUtils;
-import org.elasticsearch.ann.ExactSearch;
-import org.elasticsearch.ann.ProductQuantizer;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
 
 public class IvfpqTokenizer extends Tokenizer {
 
@@ -31,36 +32,85 @@ public class IvfpqTokenizer extends Tokenizer {
 
     private final CodeAttribute codeAttribute = addAttribute(CodeAttribute.class);
 
-    private ProductQuantizer pq;
+    private IvfpqAnalyzer analyzer;
 
-    private ExactSearch cq;
+    /**
+     * Buffers reused across documents; Lucene keeps one tokenizer per thread and analyzer.
+     */
+    private char[] buffer = new char[4096];
 
-    public IvfpqTokenizer(ExactSearch cq, ProductQuantizer pq) {
-        this.cq = cq;
-        this.pq = pq;
+    private CharBuffer chars = CharBuffer.wrap(buffer);
+
+    private final float[] features;
+
+    private final BytesRef codes;
+
+    public IvfpqTokenizer(IvfpqAnalyzer analyzer) {
+        this.analyzer = analyzer;
+        this.features = new float[analyzer.getDimension()];
+        this.codes = new BytesRef(new byte[analyzer.getProductQuantizer().getCodeSize()]);
     }
 
     @Override
     public boolean incrementToken() throws IOException {
-        StringBuilder stringBuilder = new StringBuilder();
-        for (int c = input.read(); c != -1; c = input.read()) {
-            stringBuilder.append((char) c);
+        clearAttributes();
+        int length = 0;
+        for (int read = input.read(buffer, 0, buffer.length); read != -1;
+             read = input.read(buffer, length, buffer.length - length)) {
+            length += read;
+            if (length == buffer.length) {
+                buffer = ArrayUtil.grow(buffer, length + 1);
+                chars = CharBuffer.wrap(buffer);
+            }
         }
-        String value = stringBuilder.toString();
-        if (value.length() == 0) {
+        if (length == 0) {
             return false;
         }
-        float[] features = ArrayUtils.parseFloatArrayCsv(value);
-        int coarseCenter = cq.searchNearest(features);
-        if (coarseCenter != -1) {
-            String coarseCenterText = String.valueOf(coarseCenter);
-            charTermAttribute.copyBuffer(coarseCenterText.toCharArray(), 0, coarseCenterText.length());
-            float[] residual = cq.getResidual(coarseCenter, features);
-            short[] codes = pq.getCodes(residual);
-            codeAttribute.setCodes(codes);
-            return true;
+        chars.limit(length).position(0);
+        int size;
+        if (indexOf(buffer, length, ',') == -1) {
+            // a single value or base64, rare enough to go through a string
+            float[] parsed = ArrayUtils.parseFloatArray(chars.toString());
+            size = parsed.length;
+            System.arraycopy(parsed, 0, features, 0, Math.min(size, features.length));
         } else {
+            size = ArrayUtils.parseFloatArrayCsv(chars, features);
+        }
+        if (size != features.length) {
+            throw new IllegalArgumentException("vector has dimension [" + size + "] but analyzer expects ["
+                    + features.length + "]");
+        }
+        int coarseCenter = analyzer.encode(features, codes.bytes, 0);
+        if (coarseCenter == -1) {
             return false;
         }
+        setTerm(coarseCenter);
+        codes.length = codes.bytes.length;
+        codeAttribute.setCodes(codes);
+        return true;
+    }
+
+    private void setTerm(int coarseCenter) {
+        char[] term = charTermAttribute.resizeBuffer(10);
+        int length = 0;
+        do {
+            term[length++] = (char) ('0' + coarseCenter % 10);
+            coarseCenter /= 10;
+        } while (coarseCenter > 0);
+        for (int i = 0, j = length - 1; i < j; ++i, --j) {
+            final char c = term[i];
+            term[i] = term[j];
+            term[j] = c;
+        }
+        charTermAttribute.setLength(length);
+    }
+
+    private static int indexOf(char[] chars, int length, char c) {
+        for (int i = 0; i < length; ++i) {
+            if (chars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.analysis;
+
+import org.elasticsearch.ann.CoarseQuantizer;
+import org.elasticsearch.ann.ProductQuantizer;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Node level registry of the quantizers of ivfpq analyzers, so that the analyzers of indices built
+ * on the same codebook with the same quantizer settings, such as daily rollover indices, share one
+ * copy of the centroids and of the structures built over them. Entries are keyed by the SHA-256
+ * digest of the codebook and those settings, counted by the analyzers referring to them and
+ * dropped when the last of them is released.
+ * <p>
+ * The index analyzers of 6.x are never closed, so the references taken for an index are released
+ * by this listener once the index is removed from the node. Index services that are closed without
+ * being removed, like the mapper services built to validate mapping updates, are never reported;
+ * their references are released once their index settings are garbage collected.
+ */
+public class QuantizerRegistry implements IndexEventListener {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final List<Owner> owners = new ArrayList<>();
+
+    private final ReferenceQueue<IndexSettings> collected = new ReferenceQueue<>();
+
+    /**
+     * Returns a reference to the quantizers registered under the key, creating them with the
+     * loader if there are none. The reference is released when it is closed or when the index of
+     * the given settings is removed, whichever comes first.
+     */
+    synchronized Reference acquire(String key, IndexSettings indexSettings, Supplier<Quantizers> loader) {
+        releaseCollected();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, loader.get());
+            entries.put(key, entry);
+        }
+        entry.references++;
+        Reference reference = new Reference(entry);
+        owner(indexSettings).references.add(reference);
+        return reference;
+    }
+
+    private Owner owner(IndexSettings indexSettings) {
+        for (Owner owner : owners) {
+            if (owner.get() == indexSettings) {
+                return owner;
+            }
+        }
+        Owner owner = new Owner(indexSettings, collected);
+        owners.add(owner);
+        return owner;
+    }
+
+    private synchronized void release(Entry entry) {
+        if (--entry.references == 0) {
+            entries.remove(entry.key);
+        }
+    }
+
+    /**
+     * Releases the references taken for the index of the given settings.
+     */
+    @Override
+    public synchronized void afterIndexRemoved(Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+        releaseCollected();
+        for (Iterator<Owner> it = owners.iterator(); it.hasNext(); ) {
+            Owner owner = it.next();
+            if (owner.get() == indexSettings) {
+                it.remove();
+                owner.release();
+            }
+        }
+    }
+
+    private void releaseCollected() {
+        Owner owner;
+        while ((owner = (Owner) collected.poll()) != null) {
+            owners.remove(owner);
+            owner.release();
+        }
+    }
+
+    public synchronized QuantizerRegistryStats stats() {
+        releaseCollected();
+        long references = 0;
+        long memorySizeInBytes = 0;
+        for (Entry entry : entries.values()) {
+            references += entry.references;
+            memorySizeInBytes += entry.quantizers.ramBytesUsed();
+        }
+        return new QuantizerRegistryStats(entries.size(), references, memorySizeInBytes);
+    }
+
+    /**
+     * The quantizers of one codebook and its rotation, which may be {@code null}.
+     */
+    static final class Quantizers {
+
+        private final CoarseQuantizer cq;
+
+        private final ProductQuantizer pq;
+
+        private final float[] rotation;
+
+        Quantizers(CoarseQuantizer cq, ProductQuantizer pq, float[] rotation) {
+            this.cq = cq;
+            this.pq = pq;
+            this.rotation = rotation;
+        }
+
+        CoarseQuantizer getCoarseQuantizer() {
+            return cq;
+        }
+
+        ProductQuantizer getProductQuantizer() {
+            return pq;
+        }
+
+        float[] getRotation() {
+            return rotation;
+        }
+
+        long ramBytesUsed() {
+            final long rotationSize = rotation == null ? 0 : (long) Float.BYTES * rotation.length;
+            return cq.ramBytesUsed() + pq.ramBytesUsed() + rotationSize;
+        }
+    }
+
+    private static final class Entry {
+
+        private final String key;
+
+        private final Quantizers quantizers;
+
+        private int references;
+
+        Entry(String key, Quantizers quantizers) {
+            this.key = key;
+            this.quantizers = quantizers;
+        }
+    }
+
+    /**
+     * The references taken for the index services of one {@link IndexSettings} instance.
+     */
+    private static final class Owner extends WeakReference<IndexSettings> {
+
+        private final List<Reference> references = new ArrayList<>();
+
+        Owner(IndexSettings indexSettings, ReferenceQueue<IndexSettings> queue) {
+            super(indexSettings, queue);
+        }
+
+        void release() {
+            for (Reference reference : references) {
+                reference.close();
+            }
+        }
+    }
+
+    /**
+     * One analyzer's hold on an entry, released once however often it is closed.
+     */
+    final class Reference implements Releasable {
+
+        private final Entry entry;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Reference(Entry entry) {
+            this.entry = entry;
+        }
+
+        Quantizers get() {
+            return entry.quantizers;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+    }
+}
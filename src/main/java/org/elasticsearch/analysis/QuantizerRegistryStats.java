@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.analysis;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+public class QuantizerRegistryStats implements Writeable, ToXContentFragment {
+
+    private final long count;
+
+    private final long references;
+
+    private final long memorySizeInBytes;
+
+    public QuantizerRegistryStats(long count, long references, long memorySizeInBytes) {
+        this.count = count;
+        this.references = references;
+        this.memorySizeInBytes = memorySizeInBytes;
+    }
+
+    public QuantizerRegistryStats(StreamInput in) throws IOException {
+        count = in.readVLong();
+        references = in.readVLong();
+        memorySizeInBytes = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(count);
+        out.writeVLong(references);
+        out.writeVLong(memorySizeInBytes);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getReferences() {
+        return references;
+    }
+
+    public long getMemorySizeInBytes() {
+        return memorySizeInBytes;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("quantizers");
+        builder.humanReadableField("memory_size_in_bytes", "memory_size", new ByteSizeValue(memorySizeInBytes));
+        builder.field("count", count);
+        builder.field("references", references);
+        return builder.endObject();
+    }
+}
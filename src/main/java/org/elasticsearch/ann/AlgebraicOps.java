@@ -43,29 +43,104 @@ public class AlgebraicOps {
         }
     }
 
+    /**
+     * Computes {@code z = x * y} for row-major {@code x} of {@code nx * d} and {@code y} of
+     * {@code d * ny}. Four rows of {@code y} are added per pass over a row of {@code z}, which
+     * quarters the loads and stores of {@code z}.
+     */
     public static void multiply(float[] x, float[] y, float[] z, int nx, int ny, int d) {
-        float[] ypart = new float[ny];
-        float[] zpart = new float[ny];
         for (int i = 0, xoffset = 0, zoffset = 0; i < nx; ++i, xoffset += d, zoffset += ny) {
-            for (int k = 0, yoffset = 0; k < d; ++k, yoffset += ny) {
-                final float xval = x[xoffset + k];
-                System.arraycopy(y, yoffset, ypart, 0, ny);
-                saxpy(ny, xval, ypart, zpart);
+            Arrays.fill(z, zoffset, zoffset + ny, 0f);
+            int k = 0;
+            for (int yoffset = 0; k + 3 < d; k += 4, yoffset += 4 * ny) {
+                saxpy4(ny, x, xoffset + k, y, yoffset, z, zoffset);
+            }
+            for (int yoffset = k * ny; k < d; ++k, yoffset += ny) {
+                saxpy(ny, x[xoffset + k], y, yoffset, z, zoffset);
             }
-            System.arraycopy(zpart, 0, z, zoffset, ny);
-            Arrays.fill(zpart, 0f);
         }
     }
 
     public static void l2distance(float[] x, float[] y, float[] z, int nx, int d) {
         for (int i = 0, xoffset = 0; i < nx; ++i, xoffset += d) {
-            for (int k = 0; k < d; ++k) {
-                final float diff = x[xoffset + k] - y[k];
-                z[i] += diff * diff;
+            z[i] += l2distance(x, xoffset, y, 0, d);
+        }
+    }
+
+    public static float l2distance(float[] x, float[] y, int d) {
+        return l2distance(x, 0, y, 0, d);
+    }
+
+    /**
+     * Returns the squared L2 distance between {@code x[xoffset..xoffset+d)} and {@code y[yoffset..yoffset+d)}.
+     * The loop is unrolled into four independent sums so that the JIT can pipeline the additions.
+     */
+    public static float l2distance(float[] x, int xoffset, float[] y, int yoffset, int d) {
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        int i = 0;
+        for (final int bound = d & ~3; i < bound; i += 4) {
+            final float d0 = x[xoffset + i] - y[yoffset + i];
+            final float d1 = x[xoffset + i + 1] - y[yoffset + i + 1];
+            final float d2 = x[xoffset + i + 2] - y[yoffset + i + 2];
+            final float d3 = x[xoffset + i + 3] - y[yoffset + i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < d; ++i) {
+            final float diff = x[xoffset + i] - y[yoffset + i];
+            s0 += diff * diff;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Returns the dot product of {@code x[xoffset..xoffset+d)} and {@code y[yoffset..yoffset+d)}.
+     */
+    public static float dot(float[] x, int xoffset, float[] y, int yoffset, int d) {
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        int i = 0;
+        for (final int bound = d & ~3; i < bound; i += 4) {
+            s0 += x[xoffset + i] * y[yoffset + i];
+            s1 += x[xoffset + i + 1] * y[yoffset + i + 1];
+            s2 += x[xoffset + i + 2] * y[yoffset + i + 2];
+            s3 += x[xoffset + i + 3] * y[yoffset + i + 3];
+        }
+        for (; i < d; ++i) {
+            s0 += x[xoffset + i] * y[yoffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Scales each of the {@code n} vectors of {@code x} to unit L2 norm, leaving zero vectors as they are.
+     */
+    public static void normalize(float[] x, int n, int d) {
+        for (int i = 0, offset = 0; i < n; ++i, offset += d) {
+            final float norm = (float) Math.sqrt(dot(x, offset, x, offset, d));
+            if (norm > 0) {
+                for (int j = 0; j < d; ++j) {
+                    x[offset + j] /= norm;
+                }
             }
         }
     }
 
+    /**
+     * Returns the bits of the float flipped so that they order like the float when compared as
+     * signed ints, negative values included. The mapping is its own inverse.
+     */
+    public static int sortableFloatBits(int bits) {
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
     public static void multiplyElementwise(float[] x, float[] y, float[] z, int nx) {
         for (int i = 0; i < nx; ++i) {
             z[i] = x[i] * y[i];
@@ -73,16 +148,18 @@ public class AlgebraicOps {
     }
 
     public static int findNearest(float[] x, float[] y, int ny, int d) {
+        return findNearest(x, 0, y, 0, ny, d);
+    }
+
+    /**
+     * Returns the index of the vector among the {@code ny} vectors starting at {@code y[yoffset]}
+     * that is nearest to {@code x[xoffset..xoffset+d)}.
+     */
+    public static int findNearest(float[] x, int xoffset, float[] y, int yoffset, int ny, int d) {
         int nearest = -1;
         float minDistance = Float.MAX_VALUE;
-        float[] ypart = new float[d];
-        for (int i = 0, ioffset = 0; i < ny; ++i, ioffset += d) {
-            System.arraycopy(y, ioffset, ypart, 0, d);
-            float distance = 0;
-            for (int j = 0; j < d; ++j) {
-                final float diff = ypart[j] - x[j];
-                distance += diff * diff;
-            }
+        for (int i = 0, ioffset = yoffset; i < ny; ++i, ioffset += d) {
+            final float distance = l2distance(x, xoffset, y, ioffset, d);
             if (distance < minDistance) {
                 minDistance = distance;
                 nearest = i;
@@ -91,9 +168,32 @@ public class AlgebraicOps {
         return nearest;
     }
 
-    private static void saxpy(int ny, float x, float[] y, float[] z) {
-        for (int i = 0; i < ny; ++i) {
-            z[i] += x * y[i];
+    /**
+     * Adds {@code a[aoffset + r] * x[xoffset + r * n ..]} for {@code r < 4} to {@code y[yoffset ..]}.
+     */
+    private static void saxpy4(int n, float[] a, int aoffset, float[] x, int xoffset, float[] y, int yoffset) {
+        final float a0 = a[aoffset];
+        final float a1 = a[aoffset + 1];
+        final float a2 = a[aoffset + 2];
+        final float a3 = a[aoffset + 3];
+        final int x1 = xoffset + n;
+        final int x2 = x1 + n;
+        final int x3 = x2 + n;
+        for (int i = 0; i < n; ++i) {
+            y[yoffset + i] += a0 * x[xoffset + i] + a1 * x[x1 + i] + a2 * x[x2 + i] + a3 * x[x3 + i];
+        }
+    }
+
+    private static void saxpy(int n, float a, float[] x, int xoffset, float[] y, int yoffset) {
+        int i = 0;
+        for (final int bound = n & ~3; i < bound; i += 4) {
+            y[yoffset + i] += a * x[xoffset + i];
+            y[yoffset + i + 1] += a * x[xoffset + i + 1];
+            y[yoffset + i + 2] += a * x[xoffset + i + 2];
+            y[yoffset + i + 3] += a * x[xoffset + i + 3];
+        }
+        for (; i < n; ++i) {
+            y[yoffset + i] += a * x[xoffset + i];
         }
     }
 
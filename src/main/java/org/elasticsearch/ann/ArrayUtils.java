@@ -18,21 +18,189 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Base64;
 
 public class ArrayUtils {
 
+    /**
+     * Parses either comma separated values or a base64 encoded little-endian float32 array. Text
+     * without a comma is read as a single number if it is one, so that e.g. {@code "1234567812345678"}
+     * is a one-dimensional vector and not the 12 bytes it also decodes to as base64.
+     */
+    public static float[] parseFloatArray(String floatArrayText) {
+        if (floatArrayText == null || floatArrayText.length() == 0) {
+            return new float[]{};
+        }
+        if (floatArrayText.indexOf(',') == -1) {
+            try {
+                return new float[]{parseFloat(floatArrayText, 0, floatArrayText.length())};
+            } catch (NumberFormatException e) {
+                // not a number, try base64
+            }
+            byte[] bytes;
+            try {
+                bytes = Base64.getDecoder().decode(floatArrayText.trim());
+            } catch (IllegalArgumentException e) {
+                bytes = null;
+            }
+            if (bytes != null && bytes.length > 0 && bytes.length % 4 == 0) {
+                float[] floats = new float[bytes.length / 4];
+                decodeFloatArray(bytes, 0, bytes.length, floats);
+                return floats;
+            }
+        }
+        return parseFloatArrayCsv(floatArrayText);
+    }
+
     public static float[] parseFloatArrayCsv(String floatArrayText) {
         if (floatArrayText == null || floatArrayText.length() == 0) {
             return new float[]{};
         }
-        String[] texts = floatArrayText.split(",");
-        float[] floats = new float[texts.length];
-        for (int i = 0; i < floats.length; ++i) {
-            floats[i] = Float.valueOf(texts[i].trim());
+        int size = 1;
+        for (int i = floatArrayText.indexOf(','); i != -1; i = floatArrayText.indexOf(',', i + 1)) {
+            size++;
         }
+        float[] floats = new float[size];
+        parseFloatArrayCsv(floatArrayText, floats);
         return floats;
     }
 
+    /**
+     * Parses comma separated values into {@code floats} without allocating. Returns the number
+     * of values in the text, of which only the first {@code floats.length} are stored.
+     */
+    public static int parseFloatArrayCsv(CharSequence text, float[] floats) {
+        final int length = text.length();
+        if (length == 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int start = 0; start <= length; ++count) {
+            int end = start;
+            while (end < length && text.charAt(end) != ',') {
+                end++;
+            }
+            if (count < floats.length) {
+                floats[count] = parseFloat(text, start, end);
+            }
+            start = end + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Parses {@code text[start..end)} like {@link Float#parseFloat(String)}, including the
+     * rounding. Plain decimal numbers are converted in double precision, which is at most a few
+     * ulps off and rounds to the same float unless the value is close to a midpoint between two
+     * floats; those, and any other syntax, go through {@link Float#parseFloat(String)}.
+     */
+    static float parseFloat(CharSequence text, int start, int end) {
+        int i = start;
+        int to = end;
+        while (i < to && text.charAt(i) <= ' ') {
+            i++;
+        }
+        while (to > i && text.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        final int from = i;
+        boolean negative = false;
+        if (i < to && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; i < to; ++i) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (digits < 18) {
+                    if (mantissa != 0 || c != '0') {
+                        mantissa = mantissa * 10 + (c - '0');
+                        digits++;
+                    }
+                    if (seenPoint) {
+                        exponent--;
+                    }
+                } else if (!seenPoint) {
+                    // dropped digits are below the double precision of the result
+                    exponent++;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (seenDigit && i < to && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+                negativeExponent = text.charAt(i) == '-';
+                i++;
+            }
+            int value = 0;
+            final int exponentStart = i;
+            for (; i < to && text.charAt(i) >= '0' && text.charAt(i) <= '9' && value < 1000; ++i) {
+                value = value * 10 + (text.charAt(i) - '0');
+            }
+            if (i == exponentStart) {
+                seenDigit = false;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (seenDigit && i == to) {
+            if (mantissa == 0) {
+                return negative ? -0F : 0F;
+            }
+            if (exponent >= -POWERS_OF_TEN.length + 1 && exponent < POWERS_OF_TEN.length) {
+                double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+                // the 29 low bits of the double mantissa are rounded away, stay clear of their midpoint
+                final long dropped = Double.doubleToRawLongBits(value) & 0x1FFFFFFFL;
+                if (value < Float.MAX_VALUE && value > Float.MIN_NORMAL && Math.abs(dropped - 0x10000000L) > 16) {
+                    return (float) (negative ? -value : value);
+                }
+            }
+        }
+        return Float.parseFloat(text.subSequence(from, to).toString());
+    }
+
+    private static final double[] POWERS_OF_TEN = new double[]{
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * Encodes floats as little-endian float32 values.
+     */
+    public static byte[] encodeFloatArray(float[] array) {
+        byte[] bytes = new byte[array.length * 4];
+        for (int i = 0, j = 0; i < array.length; ++i, j += 4) {
+            final int bits = Float.floatToIntBits(array[i]);
+            bytes[j] = (byte) bits;
+            bytes[j + 1] = (byte) (bits >>> 8);
+            bytes[j + 2] = (byte) (bits >>> 16);
+            bytes[j + 3] = (byte) (bits >>> 24);
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes {@code length / 4} little-endian float32 values into {@code floats}.
+     */
+    public static void decodeFloatArray(byte[] array, int offset, int length, float[] floats) {
+        for (int i = 0, j = offset, n = length / 4; i < n; ++i, j += 4) {
+            final int bits = (array[j] & 0xff)
+                    | ((array[j + 1] & 0xff) << 8)
+                    | ((array[j + 2] & 0xff) << 16)
+                    | ((array[j + 3] & 0xff) << 24);
+            floats[i] = Float.intBitsToFloat(bits);
+        }
+    }
+
     public static byte[] encodeShortArray(short[] array) throws IOException {
         try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(
                 array.length * 2);
@@ -46,8 +214,12 @@ public class ArrayUtils {
     }
 
     public static short[] decodeShortArray(byte[] array) throws IOException {
-        short[] shorts = new short[array.length / 2];
-        try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(array);
+        return decodeShortArray(array, 0, array.length);
+    }
+
+    public static short[] decodeShortArray(byte[] array, int offset, int length) throws IOException {
+        short[] shorts = new short[length / 2];
+        try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(array, offset, length);
              DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream)) {
             for (int i = 0; i < shorts.length; i++) {
                 shorts[i] = dataInputStream.readShort();
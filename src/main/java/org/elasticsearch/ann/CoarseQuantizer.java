@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+/**
+ * Assigns vectors to the nearest of {@code nlist} coarse centroids, which name the inverted lists.
+ */
+public interface CoarseQuantizer {
+
+    int getDimension();
+
+    /**
+     * Returns the number of centroids.
+     */
+    int getNlist();
+
+    /**
+     * Returns the metric centroids are compared with.
+     */
+    Metric getMetric();
+
+    /**
+     * Returns the approximate heap size of the centroids and of the structures built over them.
+     */
+    long ramBytesUsed();
+
+    /**
+     * Returns the distance between the vector and the given centroid under {@link #getMetric()}.
+     */
+    float distance(int centroid, float[] feature);
+
+    /**
+     * Returns the difference between the vector and the given centroid.
+     */
+    float[] getResidual(int nearest, float[] feature);
+
+    /**
+     * Writes the difference between the vector and the given centroid to {@code residual}.
+     */
+    void getResidual(int nearest, float[] feature, float[] residual);
+
+    /**
+     * Returns the nearest centroid of the vector, or {@code -1} if there are no centroids.
+     */
+    int searchNearest(float[] feature);
+
+    /**
+     * Returns up to {@code k} centroids near the vector, nearest first.
+     */
+    int[] searchNearest(float[] feature, int k);
+
+    /**
+     * Returns up to {@code k} centroids near each of the {@code n} vectors stored one after the
+     * other in {@code x}, nearest first.
+     */
+    default int[][] searchNearest(float[] x, int n, int k) {
+        final int d = getDimension();
+        int[][] nearest = new int[n][];
+        float[] feature = new float[d];
+        for (int i = 0; i < n; ++i) {
+            System.arraycopy(x, i * d, feature, 0, d);
+            nearest[i] = searchNearest(feature, k);
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Coarse and product quantizer centroids in a binary file. All values are little-endian:
+ * <pre>
+ * int    magic ('IVPQ')
+ * int    version
+ * int    d, m, ksub, nlist
+ * float  rotation [d * d], only in version 2
+ * float  coarse centroids [nlist * d]
+ * float  pq centroids [m * ksub * (d / m)]
+ * long   CRC32 of all preceding bytes
+ * </pre>
+ * Codebooks without a rotation are written as version 1, so their checksums don't change.
+ */
+public class Codebook {
+
+    private static final int MAGIC = 0x49565051;
+
+    private static final int VERSION = 1;
+
+    private static final int VERSION_ROTATION = 2;
+
+    private static final int HEADER_SIZE = 6 * Integer.BYTES;
+
+    private final int d;
+
+    private final int m;
+
+    private final int ksub;
+
+    private final float[] rotation;
+
+    private final float[] coarseCentroids;
+
+    private final float[] pqCentroids;
+
+    private final long checksum;
+
+    public Codebook(int d, int m, int ksub, float[] coarseCentroids, float[] pqCentroids) {
+        this(d, m, ksub, null, coarseCentroids, pqCentroids);
+    }
+
+    /**
+     * Creates a codebook whose quantizers work on vectors {@code x} rotated to {@code x R} by the
+     * row-major {@code d * d} matrix {@code R}, or on the vectors themselves when it is {@code null}.
+     */
+    public Codebook(int d, int m, int ksub, float[] rotation, float[] coarseCentroids, float[] pqCentroids) {
+        this(d, m, ksub, rotation, coarseCentroids, pqCentroids,
+                checksum(toBytes(d, m, ksub, rotation, coarseCentroids, pqCentroids)));
+    }
+
+    private Codebook(int d, int m, int ksub, float[] rotation, float[] coarseCentroids, float[] pqCentroids,
+                     long checksum) {
+        this.d = d;
+        this.m = m;
+        this.ksub = ksub;
+        this.rotation = rotation;
+        this.coarseCentroids = coarseCentroids;
+        this.pqCentroids = pqCentroids;
+        this.checksum = checksum;
+    }
+
+    public int getDimension() {
+        return d;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getKsub() {
+        return ksub;
+    }
+
+    /**
+     * Returns the row-major rotation matrix, or {@code null} if vectors are quantized as they are.
+     */
+    public float[] getRotation() {
+        return rotation;
+    }
+
+    public float[] getCoarseCentroids() {
+        return coarseCentroids;
+    }
+
+    public float[] getPqCentroids() {
+        return pqCentroids;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 digest of the codebook, computed over the same bytes as the
+     * checksum. Unlike the checksum, it can be relied on to tell different codebooks apart.
+     */
+    public String getDigest() {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        byte[] digest = sha256.digest(toBytes(d, m, ksub, rotation, coarseCentroids, pqCentroids));
+        return String.format(Locale.ROOT, "%064x", new BigInteger(1, digest));
+    }
+
+    /**
+     * Memory maps and validates a codebook file.
+     */
+    public static Codebook read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + Long.BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("illegal codebook size [" + size + "]: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("not a codebook file: " + path);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION && version != VERSION_ROTATION) {
+                throw new IOException("unsupported codebook version [" + version + "]: " + path);
+            }
+            int d = buffer.getInt();
+            int m = buffer.getInt();
+            int ksub = buffer.getInt();
+            int nlist = buffer.getInt();
+            final long rotationSize = version == VERSION_ROTATION ? (long) d * d : 0;
+            long expectedSize = HEADER_SIZE + (rotationSize + (long) nlist * d + (long) ksub * d) * Float.BYTES
+                    + Long.BYTES;
+            if (d <= 0 || m <= 0 || d % m != 0 || ksub <= 0 || nlist <= 0 || expectedSize != size) {
+                throw new IOException("corrupted codebook header: " + path);
+            }
+            int contentSize = (int) size - Long.BYTES;
+            CRC32 crc32 = new CRC32();
+            ByteBuffer content = buffer.duplicate();
+            content.position(0).limit(contentSize);
+            crc32.update(content);
+            long checksum = buffer.getLong(contentSize);
+            if (crc32.getValue() != checksum) {
+                throw new IOException("codebook checksum mismatch: " + path);
+            }
+            float[] rotation = rotationSize == 0 ? null : new float[(int) rotationSize];
+            float[] coarseCentroids = new float[nlist * d];
+            float[] pqCentroids = new float[ksub * d];
+            buffer.position(HEADER_SIZE);
+            FloatBuffer floats = buffer.asFloatBuffer();
+            if (rotation != null) {
+                floats.get(rotation);
+            }
+            floats.get(coarseCentroids).get(pqCentroids);
+            return new Codebook(d, m, ksub, rotation, coarseCentroids, pqCentroids, checksum);
+        }
+    }
+
+    /**
+     * Writes the codebook to a new file, existing files are never replaced since indices may
+     * still refer to them by checksum.
+     */
+    public void write(Path path) throws IOException {
+        byte[] bytes = toBytes(d, m, ksub, rotation, coarseCentroids, pqCentroids);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(bytes).putLong(checksum).flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static byte[] toBytes(int d, int m, int ksub, float[] rotation, float[] coarseCentroids,
+                                  float[] pqCentroids) {
+        if (d <= 0 || coarseCentroids.length % d != 0) {
+            throw new IllegalArgumentException("coarse centroids don't match dimension [" + d + "]");
+        }
+        if (rotation != null && rotation.length != d * d) {
+            throw new IllegalArgumentException("expected [" + d * d + "] rotation values but got ["
+                    + rotation.length + "]");
+        }
+        if (pqCentroids.length != ksub * d) {
+            throw new IllegalArgumentException("expected [" + ksub * d + "] pq centroid values but got ["
+                    + pqCentroids.length + "]");
+        }
+        final int rotationSize = rotation == null ? 0 : rotation.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                + (rotationSize + coarseCentroids.length + pqCentroids.length) * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(rotation == null ? VERSION : VERSION_ROTATION).putInt(d).putInt(m).putInt(ksub)
+                .putInt(coarseCentroids.length / d);
+        FloatBuffer floats = buffer.asFloatBuffer();
+        if (rotation != null) {
+            floats.put(rotation);
+        }
+        floats.put(coarseCentroids).put(pqCentroids);
+        return buffer.array();
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return crc32.getValue();
+    }
+}
@@ -15,7 +15,16 @@ package org.elasticsearch.ann;
 
 import java.util.Arrays;
 
-public class ExactSearch {
+/**
+ * Finds nearest centroids by computing the distance to every centroid.
+ * <p>
+ * Distances are ordered as longs holding the sortable bits of the distance in the high and the
+ * centroid in the low word, so that they order by distance, then by centroid, also when inner
+ * product distances are negative.
+ */
+public class ExactSearch implements CoarseQuantizer {
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
 
     private final int d;
 
@@ -23,38 +32,250 @@ public class ExactSearch {
 
     private final float[] centroids;
 
+    private final Metric metric;
+
+    /**
+     * Centroids laid out for batched search, built when the first batch is searched.
+     */
+    private volatile Transposed transposed;
+
     public ExactSearch(int d, float[] centroids) {
+        this(d, centroids, Metric.L2);
+    }
+
+    public ExactSearch(int d, float[] centroids, Metric metric) {
         this.d = d;
         this.nlist = d == 0 ? 0 : centroids.length / d;
         this.centroids = centroids;
+        this.metric = metric;
+    }
+
+    @Override
+    public int getDimension() {
+        return d;
+    }
+
+    @Override
+    public int getNlist() {
+        return nlist;
+    }
+
+    @Override
+    public Metric getMetric() {
+        return metric;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        final Transposed transposed = this.transposed;
+        long size = (long) Float.BYTES * centroids.length;
+        if (transposed != null) {
+            size += (long) Float.BYTES * (transposed.centroids.length + transposed.norms.length);
+        }
+        return size;
+    }
+
+    @Override
+    public float distance(int centroid, float[] feature) {
+        return metric.distance(feature, 0, centroids, centroid * d, d);
     }
 
+    @Override
     public float[] getResidual(int nearest, float[] feature) {
         float[] residual = new float[d];
-        System.arraycopy(centroids, nearest * d, residual, 0, d);
-        for (int i = 0; i < d; ++i) {
-            residual[i] = feature[i] - residual[i];
-        }
+        getResidual(nearest, feature, residual);
         return residual;
     }
 
+    @Override
+    public void getResidual(int nearest, float[] feature, float[] residual) {
+        for (int i = 0, offset = nearest * d; i < d; ++i) {
+            residual[i] = feature[i] - centroids[offset + i];
+        }
+    }
+
+    @Override
     public int searchNearest(float[] feature) {
-        return AlgebraicOps.findNearest(feature, centroids, nlist, d);
+        if (metric == Metric.L2) {
+            return AlgebraicOps.findNearest(feature, centroids, nlist, d);
+        }
+        int nearest = -1;
+        float minDistance = Float.POSITIVE_INFINITY;
+        for (int i = 0, offset = 0; i < nlist; ++i, offset += d) {
+            final float distance = -AlgebraicOps.dot(feature, 0, centroids, offset, d);
+            if (distance < minDistance) {
+                minDistance = distance;
+                nearest = i;
+            }
+        }
+        return nearest;
     }
 
+    /**
+     * Returns the {@code k} nearest centroids, nearest first. Only a bounded max-heap of {@code k}
+     * entries is kept ordered, so selecting a few probes out of a large {@code nlist} costs
+     * {@code O(nlist log k)} instead of sorting every distance.
+     */
+    @Override
     public int[] searchNearest(float[] feature, int k) {
-        float[] distances = new float[nlist];
-        AlgebraicOps.l2distance(centroids, feature, distances, nlist, d);
-        long[] encoded = new long[distances.length];
+        final int size = nlist >= k ? k : nlist;
+        Scratch scratch = SCRATCH.get();
+        float[] distances = scratch.distances(nlist);
+        if (metric == Metric.L2) {
+            AlgebraicOps.l2distance(centroids, feature, distances, nlist, d);
+        } else {
+            for (int i = 0, offset = 0; i < nlist; ++i, offset += d) {
+                distances[i] = -AlgebraicOps.dot(feature, 0, centroids, offset, d);
+            }
+        }
+        return selectNearest(distances, 0, nlist, scratch.heap(size), size);
+    }
+
+    /**
+     * Computes the distances of a block of vectors to all centroids with one matrix product,
+     * {@code |x|^2 - 2 x.c + |c|^2} or {@code -x.c}, and then selects the nearest centroids of each vector like
+     * {@link #searchNearest(float[], int)}. The transposed centroids the product needs are built on
+     * the first call.
+     */
+    @Override
+    public int[][] searchNearest(float[] x, int n, int k) {
+        final int size = nlist >= k ? k : nlist;
+        final Transposed transposed = transposed();
+        final int blockSize = Math.max(1, Math.min(n, Math.min(256, (1 << 20) / Math.max(1, nlist))));
+        final float[] xblock = new float[blockSize * d];
+        final float[] products = new float[blockSize * nlist];
+        final float[] norms = new float[blockSize];
+        final long[] heap = new long[size];
+        int[][] nearest = new int[n][];
+        for (int from = 0; from < n; from += blockSize) {
+            final int count = Math.min(blockSize, n - from);
+            System.arraycopy(x, from * d, xblock, 0, count * d);
+            Arrays.fill(norms, 0);
+            AlgebraicOps.square(xblock, norms, count, d);
+            AlgebraicOps.multiply(xblock, transposed.centroids, products, count, nlist, d);
+            for (int i = 0, offset = 0; i < count; ++i, offset += nlist) {
+                for (int j = 0; j < nlist; ++j) {
+                    if (metric == Metric.L2) {
+                        // rounding can leave a tiny negative distance where the vector is a centroid
+                        products[offset + j] = Math.max(0f, norms[i] + transposed.norms[j] - 2 * products[offset + j]);
+                    } else {
+                        products[offset + j] = -products[offset + j];
+                    }
+                }
+                nearest[from + i] = selectNearest(products, offset, nlist, heap, size);
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Returns the indices of the {@code size} smallest of the {@code nlist} distances starting at
+     * {@code offset}, nearest first.
+     */
+    private static int[] selectNearest(float[] distances, int offset, int nlist, long[] heap, int size) {
+        // ties go to the lower index
+        int heapSize = 0;
         for (int i = 0; i < nlist; ++i) {
-            encoded[i] = (((long) Float.floatToIntBits(distances[i])) << 32) | (i & 0xffffffffL);
+            final long encoded = encode(distances[offset + i], i);
+            if (heapSize < size) {
+                heap[heapSize] = encoded;
+                siftUp(heap, heapSize++);
+            } else if (encoded < heap[0]) {
+                heap[0] = encoded;
+                siftDown(heap, size);
+            }
         }
-        Arrays.sort(encoded);
-        int size = nlist >= k ? k : nlist;
+        Arrays.sort(heap, 0, size);
         int[] result = new int[size];
         for (int i = 0; i < size; ++i) {
-            result[i] = (int) (encoded[i]);
+            result[i] = (int) (heap[i]);
+        }
+        return result;
+    }
+
+    private static long encode(float distance, int centroid) {
+        return ((long) AlgebraicOps.sortableFloatBits(Float.floatToIntBits(distance)) << 32)
+                | (centroid & 0xffffffffL);
+    }
+
+    private Transposed transposed() {
+        Transposed result = transposed;
+        if (result == null) {
+            float[] t = new float[nlist * d];
+            AlgebraicOps.transpose(centroids, t, nlist, d);
+            float[] norms = new float[nlist];
+            AlgebraicOps.square(centroids, norms, nlist, d);
+            transposed = result = new Transposed(t, norms);
         }
         return result;
     }
+
+    private static void siftUp(long[] heap, int i) {
+        final long value = heap[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (heap[parent] >= value) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        final long value = heap[0];
+        int i = 0;
+        int child;
+        while ((child = 2 * i + 1) < size) {
+            if (child + 1 < size && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if (heap[child] <= value) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+    }
+
+    private static final class Transposed {
+
+        private final float[] centroids;
+
+        private final float[] norms;
+
+        Transposed(float[] centroids, float[] norms) {
+            this.centroids = centroids;
+            this.norms = norms;
+        }
+    }
+
+    /**
+     * Per-thread buffers of {@link #searchNearest(float[], int)}, grown on demand and shared by
+     * every instance so that analyzers of many indices don't each pin {@code nlist} floats.
+     */
+    private static final class Scratch {
+
+        private float[] distances = new float[0];
+
+        private long[] heap = new long[0];
+
+        float[] distances(int size) {
+            if (distances.length < size) {
+                distances = new float[size];
+            } else {
+                Arrays.fill(distances, 0, size, 0);
+            }
+            return distances;
+        }
+
+        long[] heap(int size) {
+            if (heap.length < size) {
+                heap = new long[size];
+            }
+            return heap;
+        }
+    }
 }
@@ -0,0 +1,422 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Finds nearest centroids with a hierarchical navigable small world graph built over the centroids,
+ * see "Efficient and robust approximate nearest neighbor search using Hierarchical Navigable Small
+ * World graphs" - Yu. A. Malkov, D. A. Yashunin. Search cost grows with {@code log(nlist)} instead
+ * of {@code nlist}, at the price of occasionally missing a near centroid.
+ * <p>
+ * Candidates are handled as longs holding the sortable bits of the distance in the high and the
+ * centroid in the low word, so that they order by distance, then by centroid. The graph links
+ * centroids by L2 distance whatever the metric, and is searched with the metric.
+ */
+public class HnswSearch implements CoarseQuantizer {
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final int d;
+
+    private final int nlist;
+
+    private final float[] centroids;
+
+    private final int m;
+
+    private final int efSearch;
+
+    private final Metric metric;
+
+    /**
+     * Level 0 links, {@code 2 * m} slots per centroid preceded by their count.
+     */
+    private final int[] links0;
+
+    /**
+     * Links of the levels above 0, {@code m} slots per level preceded by their count, or {@code null}.
+     */
+    private final int[][] upperLinks;
+
+    private int entryPoint;
+
+    private int maxLevel;
+
+    public HnswSearch(int d, float[] centroids, int m, int efConstruction, int efSearch, long seed) {
+        this(d, centroids, m, efConstruction, efSearch, seed, Metric.L2);
+    }
+
+    public HnswSearch(int d, float[] centroids, int m, int efConstruction, int efSearch, long seed,
+                      Metric metric) {
+        if (m < 2) {
+            throw new IllegalArgumentException("m [" + m + "] must be at least 2");
+        }
+        this.d = d;
+        this.nlist = d == 0 ? 0 : centroids.length / d;
+        this.centroids = centroids;
+        this.m = m;
+        this.efSearch = efSearch;
+        this.metric = metric;
+        this.links0 = new int[nlist * (2 * m + 1)];
+        this.upperLinks = new int[nlist][];
+        Random random = new Random(seed);
+        final double levelMultiplier = 1 / Math.log(m);
+        int[] levels = new int[nlist];
+        for (int i = 0; i < nlist; ++i) {
+            levels[i] = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            if (levels[i] > 0) {
+                upperLinks[i] = new int[levels[i] * (m + 1)];
+            }
+        }
+        if (nlist > 0) {
+            entryPoint = 0;
+            maxLevel = levels[0];
+        }
+        for (int i = 1; i < nlist; ++i) {
+            insert(i, levels[i], Math.max(efConstruction, m));
+        }
+    }
+
+    @Override
+    public int getDimension() {
+        return d;
+    }
+
+    @Override
+    public int getNlist() {
+        return nlist;
+    }
+
+    @Override
+    public Metric getMetric() {
+        return metric;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        long size = (long) Float.BYTES * centroids.length + (long) Integer.BYTES * links0.length;
+        if (upperLinks != null) {
+            for (int[] links : upperLinks) {
+                if (links != null) {
+                    size += (long) Integer.BYTES * links.length;
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public float distance(int centroid, float[] feature) {
+        return metric.distance(feature, 0, centroids, centroid * d, d);
+    }
+
+    @Override
+    public float[] getResidual(int nearest, float[] feature) {
+        float[] residual = new float[d];
+        getResidual(nearest, feature, residual);
+        return residual;
+    }
+
+    @Override
+    public void getResidual(int nearest, float[] feature, float[] residual) {
+        for (int i = 0, offset = nearest * d; i < d; ++i) {
+            residual[i] = feature[i] - centroids[offset + i];
+        }
+    }
+
+    @Override
+    public int searchNearest(float[] feature) {
+        if (nlist == 0) {
+            return -1;
+        }
+        Scratch scratch = SCRATCH.get();
+        searchLevel(feature, 0, searchUpperLevels(feature), efSearch, 0, metric, scratch);
+        return (int) scratch.results[0];
+    }
+
+    @Override
+    public int[] searchNearest(float[] feature, int k) {
+        if (nlist == 0) {
+            return new int[0];
+        }
+        Scratch scratch = SCRATCH.get();
+        int size = searchLevel(feature, 0, searchUpperLevels(feature), Math.max(efSearch, k), 0, metric,
+                scratch);
+        int[] result = new int[Math.min(k, size)];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = (int) scratch.results[i];
+        }
+        return result;
+    }
+
+    private int searchUpperLevels(float[] feature) {
+        int nearest = entryPoint;
+        for (int level = maxLevel; level > 0; --level) {
+            nearest = searchGreedy(feature, 0, nearest, level, metric);
+        }
+        return nearest;
+    }
+
+    private void insert(int node, int level, int efConstruction) {
+        final int offset = node * d;
+        int nearest = entryPoint;
+        for (int l = maxLevel; l > level; --l) {
+            nearest = searchGreedy(centroids, offset, nearest, l, Metric.L2);
+        }
+        Scratch scratch = SCRATCH.get();
+        for (int l = Math.min(level, maxLevel); l >= 0; --l) {
+            int size = searchLevel(centroids, offset, nearest, efConstruction, l, Metric.L2, scratch);
+            long[] candidates = Arrays.copyOf(scratch.results, size);
+            int[] neighbors = selectNeighbors(candidates, size, m);
+            int[] links = links(node, l);
+            int linksOffset = linksOffset(node, l);
+            links[linksOffset] = neighbors.length;
+            System.arraycopy(neighbors, 0, links, linksOffset + 1, neighbors.length);
+            for (int neighbor : neighbors) {
+                link(neighbor, node, l);
+            }
+            nearest = (int) candidates[0];
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Adds a link from {@code node} to {@code neighbor}, pruning the links of {@code node} with the
+     * neighbor selection heuristic when they are full.
+     */
+    private void link(int node, int neighbor, int level) {
+        final int maxLinks = level == 0 ? 2 * m : m;
+        int[] links = links(node, level);
+        final int offset = linksOffset(node, level);
+        final int count = links[offset];
+        if (count < maxLinks) {
+            links[offset + 1 + count] = neighbor;
+            links[offset] = count + 1;
+            return;
+        }
+        long[] candidates = new long[count + 1];
+        for (int i = 0; i < count; ++i) {
+            candidates[i] = encode(distance(node, links[offset + 1 + i]), links[offset + 1 + i]);
+        }
+        candidates[count] = encode(distance(node, neighbor), neighbor);
+        Arrays.sort(candidates);
+        int[] selected = selectNeighbors(candidates, candidates.length, maxLinks);
+        links[offset] = selected.length;
+        System.arraycopy(selected, 0, links, offset + 1, selected.length);
+    }
+
+    /**
+     * Keeps the candidates, nearest first, that are nearer to the base than to any candidate kept
+     * before, so that links spread in all directions instead of into the nearest cluster only.
+     */
+    private int[] selectNeighbors(long[] candidates, int size, int maxNeighbors) {
+        int[] selected = new int[maxNeighbors];
+        int count = 0;
+        for (int i = 0; i < size && count < maxNeighbors; ++i) {
+            final int candidate = (int) candidates[i];
+            final float distance = Float.intBitsToFloat(AlgebraicOps.sortableFloatBits((int) (candidates[i] >>> 32)));
+            boolean keep = true;
+            for (int j = 0; j < count; ++j) {
+                if (distance(candidate, selected[j]) < distance) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate;
+            }
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    private int searchGreedy(float[] feature, int offset, int nearest, int level, Metric metric) {
+        float nearestDistance = metric.distance(feature, offset, centroids, nearest * d, d);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] links = links(nearest, level);
+            final int linksOffset = linksOffset(nearest, level);
+            for (int i = 1, count = links[linksOffset]; i <= count; ++i) {
+                final int neighbor = links[linksOffset + i];
+                final float distance = metric.distance(feature, offset, centroids, neighbor * d, d);
+                if (distance < nearestDistance) {
+                    nearestDistance = distance;
+                    nearest = neighbor;
+                    changed = true;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Runs a beam search of width {@code ef} on one level and leaves the results, nearest first,
+     * in {@link Scratch#results}. Returns the number of results.
+     */
+    private int searchLevel(float[] feature, int offset, int entry, int ef, int level, Metric metric,
+                            Scratch scratch) {
+        final int generation = scratch.nextGeneration(nlist);
+        final int[] visited = scratch.visited;
+        final LongHeap candidates = scratch.candidates;
+        // a min-heap of negated candidates is a max-heap of the results
+        final LongHeap results = scratch.furthest;
+        candidates.clear();
+        results.clear();
+        long encoded = encode(metric.distance(feature, offset, centroids, entry * d, d), entry);
+        visited[entry] = generation;
+        candidates.push(encoded);
+        results.push(-encoded);
+        while (candidates.size() > 0) {
+            final long candidate = candidates.pop();
+            if (results.size() >= ef && candidate > -results.top()) {
+                break;
+            }
+            final int node = (int) candidate;
+            int[] links = links(node, level);
+            final int linksOffset = linksOffset(node, level);
+            for (int i = 1, count = links[linksOffset]; i <= count; ++i) {
+                final int neighbor = links[linksOffset + i];
+                if (visited[neighbor] == generation) {
+                    continue;
+                }
+                visited[neighbor] = generation;
+                encoded = encode(metric.distance(feature, offset, centroids, neighbor * d, d), neighbor);
+                if (results.size() < ef || encoded < -results.top()) {
+                    candidates.push(encoded);
+                    results.push(-encoded);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        final int size = results.size();
+        long[] sorted = scratch.results(size);
+        for (int i = size - 1; i >= 0; --i) {
+            sorted[i] = -results.pop();
+        }
+        return size;
+    }
+
+    private float distance(int x, int y) {
+        return AlgebraicOps.l2distance(centroids, x * d, centroids, y * d, d);
+    }
+
+    private int[] links(int node, int level) {
+        return level == 0 ? links0 : upperLinks[node];
+    }
+
+    private int linksOffset(int node, int level) {
+        return level == 0 ? node * (2 * m + 1) : (level - 1) * (m + 1);
+    }
+
+    private static long encode(float distance, int node) {
+        return ((long) AlgebraicOps.sortableFloatBits(Float.floatToIntBits(distance)) << 32) | (node & 0xffffffffL);
+    }
+
+    /**
+     * Binary min-heap of longs.
+     */
+    static final class LongHeap {
+
+        private long[] heap = new long[16];
+
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        long top() {
+            return heap[0];
+        }
+
+        void push(long value) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (heap[parent] <= value) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        long pop() {
+            final long top = heap[0];
+            final long value = heap[--size];
+            int i = 0;
+            int child;
+            while ((child = 2 * i + 1) < size) {
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= value) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = value;
+            return top;
+        }
+    }
+
+    /**
+     * Per-thread search buffers shared by every graph. Visited centroids are marked with the
+     * number of the search so the array never needs clearing.
+     */
+    private static final class Scratch {
+
+        private final LongHeap candidates = new LongHeap();
+
+        private final LongHeap furthest = new LongHeap();
+
+        private int[] visited = new int[0];
+
+        private int generation;
+
+        private long[] results = new long[0];
+
+        int nextGeneration(int nlist) {
+            if (visited.length < nlist || generation == Integer.MAX_VALUE) {
+                visited = new int[Math.max(nlist, visited.length)];
+                generation = 0;
+            }
+            return ++generation;
+        }
+
+        long[] results(int size) {
+            if (results.length < size) {
+                results = new long[size];
+            }
+            return results;
+        }
+    }
+}
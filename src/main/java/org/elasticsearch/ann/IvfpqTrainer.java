@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Trains the coarse quantizer with k-means over the samples, then a product quantizer with
+ * k-means per subspace over the residuals of the samples to their coarse centroids.
+ */
+public class IvfpqTrainer {
+
+    private final int d;
+
+    private final int nlist;
+
+    private final int m;
+
+    private final int ksub;
+
+    private final int iterations;
+
+    private final long seed;
+
+    public IvfpqTrainer(int d, int nlist, int m, int ksub, int iterations, long seed) {
+        if (d <= 0 || m <= 0 || d % m != 0) {
+            throw new IllegalArgumentException("d [" + d + "] must be a positive multiple of m [" + m + "]");
+        }
+        if (ksub <= 0 || ksub > 65536) {
+            throw new IllegalArgumentException("ksub [" + ksub + "] must be in [1, 65536]");
+        }
+        this.d = d;
+        this.nlist = nlist;
+        this.m = m;
+        this.ksub = ksub;
+        this.iterations = iterations;
+        this.seed = seed;
+    }
+
+    public Codebook train(float[] x, int n, ForkJoinPool pool) {
+        float[] coarseCentroids = new KMeans(d, nlist, iterations, seed, pool).train(x, n);
+        int[] assignments = new int[n];
+        new KMeans(d, nlist, iterations, seed, pool).assign(x, n, coarseCentroids, assignments);
+
+        final int dsub = d / m;
+        float[] pqCentroids = new float[ksub * d];
+        float[] subvectors = new float[n * dsub];
+        for (int i = 0; i < m; ++i) {
+            final int foffset = i * dsub;
+            for (int j = 0, xoffset = 0, soffset = 0; j < n; ++j, xoffset += d, soffset += dsub) {
+                final int coffset = assignments[j] * d + foffset;
+                for (int l = 0; l < dsub; ++l) {
+                    subvectors[soffset + l] = x[xoffset + foffset + l] - coarseCentroids[coffset + l];
+                }
+            }
+            float[] centroids = new KMeans(dsub, ksub, iterations, seed + i + 1, pool).train(subvectors, n);
+            System.arraycopy(centroids, 0, pqCentroids, i * ksub * dsub, ksub * dsub);
+        }
+        return new Codebook(d, m, ksub, coarseCentroids, pqCentroids);
+    }
+}
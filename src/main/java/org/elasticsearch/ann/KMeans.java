@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Lloyd's k-means. The assignment step computes {@code ||c||^2 - 2 x.c} for blocks of points with
+ * {@link AlgebraicOps#multiply} and runs the blocks in parallel on a fork-join pool.
+ */
+public class KMeans {
+
+    private static final float EPSILON = 1.0F / 1024;
+
+    private final int d;
+
+    private final int k;
+
+    private final int iterations;
+
+    private final long seed;
+
+    private final ForkJoinPool pool;
+
+    public KMeans(int d, int k, int iterations, long seed, ForkJoinPool pool) {
+        this.d = d;
+        this.k = k;
+        this.iterations = iterations;
+        this.seed = seed;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns {@code k * d} centroids of the {@code n} vectors in {@code x}.
+     */
+    public float[] train(float[] x, int n) {
+        if (n < k) {
+            throw new IllegalArgumentException("k-means needs at least [" + k + "] vectors but got [" + n + "]");
+        }
+        Random random = new Random(seed);
+        float[] centroids = new float[k * d];
+        int[] indices = new int[n];
+        for (int i = 0; i < n; ++i) {
+            indices[i] = i;
+        }
+        for (int i = 0; i < k; ++i) {
+            int j = i + random.nextInt(n - i);
+            int index = indices[j];
+            indices[j] = indices[i];
+            System.arraycopy(x, index * d, centroids, i * d, d);
+        }
+        int[] assignments = new int[n];
+        for (int iteration = 0; iteration < iterations; ++iteration) {
+            assign(x, n, centroids, assignments);
+            update(x, n, assignments, centroids, random);
+        }
+        return centroids;
+    }
+
+    /**
+     * Writes the index of the nearest centroid of each vector to {@code assignments}.
+     */
+    public void assign(float[] x, int n, float[] centroids, int[] assignments) {
+        final float[] transposed = new float[k * d];
+        AlgebraicOps.transpose(centroids, transposed, k, d);
+        final float[] norms = new float[k];
+        AlgebraicOps.square(centroids, norms, k, d);
+        final int blockSize = Math.max(1, Math.min(256, (1 << 20) / k));
+        final int blocks = (n + blockSize - 1) / blockSize;
+        Runnable task = () -> IntStream.range(0, blocks).parallel().forEach(block -> {
+            int from = block * blockSize;
+            int size = Math.min(blockSize, n - from);
+            float[] xblock = new float[size * d];
+            System.arraycopy(x, from * d, xblock, 0, size * d);
+            float[] products = new float[size * k];
+            AlgebraicOps.multiply(xblock, transposed, products, size, k, d);
+            for (int i = 0, offset = 0; i < size; ++i, offset += k) {
+                int nearest = 0;
+                float minDistance = Float.MAX_VALUE;
+                for (int j = 0; j < k; ++j) {
+                    final float distance = norms[j] - 2 * products[offset + j];
+                    if (distance < minDistance) {
+                        minDistance = distance;
+                        nearest = j;
+                    }
+                }
+                assignments[from + i] = nearest;
+            }
+        });
+        pool.submit(task).join();
+    }
+
+    private void update(float[] x, int n, int[] assignments, float[] centroids, Random random) {
+        double[] sums = new double[k * d];
+        int[] counts = new int[k];
+        for (int i = 0, xoffset = 0; i < n; ++i, xoffset += d) {
+            final int soffset = assignments[i] * d;
+            for (int j = 0; j < d; ++j) {
+                sums[soffset + j] += x[xoffset + j];
+            }
+            counts[assignments[i]]++;
+        }
+        for (int i = 0, offset = 0; i < k; ++i, offset += d) {
+            if (counts[i] > 0) {
+                for (int j = 0; j < d; ++j) {
+                    centroids[offset + j] = (float) (sums[offset + j] / counts[i]);
+                }
+            }
+        }
+        // split a populated cluster in two for every empty one
+        for (int i = 0; i < k; ++i) {
+            if (counts[i] > 0) {
+                continue;
+            }
+            int source = random.nextInt(k);
+            while (counts[source] <= 1 || random.nextFloat() * n >= counts[source] * 2) {
+                source = (source + 1) % k;
+            }
+            for (int j = 0; j < d; ++j) {
+                final float value = centroids[source * d + j];
+                final float sign = (j & 1) == 0 ? 1 : -1;
+                centroids[i * d + j] = value * (1 + sign * EPSILON);
+                centroids[source * d + j] = value * (1 - sign * EPSILON);
+            }
+            counts[i] = counts[source] / 2;
+            counts[source] -= counts[i];
+        }
+    }
+}
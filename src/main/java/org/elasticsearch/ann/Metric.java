@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import java.util.Locale;
+
+/**
+ * How vectors are compared. Every metric is expressed as a distance, smaller is nearer, so inner
+ * products are negated and distances may be negative.
+ */
+public enum Metric {
+
+    /**
+     * The squared L2 distance.
+     */
+    L2,
+
+    /**
+     * The negated inner product, for maximum inner product search.
+     */
+    INNER_PRODUCT,
+
+    /**
+     * The negated cosine similarity, which is the negated inner product of vectors normalized to
+     * unit length when they are indexed and searched.
+     */
+    COSINE;
+
+    public float distance(float[] x, int xoffset, float[] y, int yoffset, int d) {
+        return this == L2 ? AlgebraicOps.l2distance(x, xoffset, y, yoffset, d)
+                : -AlgebraicOps.dot(x, xoffset, y, yoffset, d);
+    }
+
+    /**
+     * Whether vectors are normalized to unit length before they are quantized or searched.
+     */
+    public boolean normalizes() {
+        return this == COSINE;
+    }
+
+    public static Metric fromString(String value) {
+        return valueOf(value.toUpperCase(Locale.ROOT));
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -13,6 +13,8 @@
  */
 package org.elasticsearch.ann;
 
+import java.util.Arrays;
+
 public class ProductQuantizer {
 
     private final int m;
@@ -30,6 +32,13 @@ public class ProductQuantizer {
         this.pqCentroids = pqCentroids;
     }
 
+    /**
+     * Returns the approximate heap size of the centroids.
+     */
+    public long ramBytesUsed() {
+        return (long) Float.BYTES * pqCentroids.length;
+    }
+
     public float getDistance(float[] codeTable, short[] codes) {
         float distance = 0;
         for (int i = 0, offset = 0; i < codes.length; ++i, offset += ksub) {
@@ -38,30 +47,245 @@ public class ProductQuantizer {
         return distance;
     }
 
-    public float[] getCodeTable(float[] feature) {
-        final float[] codeTable = new float[m * ksub];
-        for (int i = 0, ioffset = 0, foffset = 0, toffset = 0, subLen = ksub * dsub;
-             i < m; ++i, ioffset += subLen, foffset += dsub, toffset += ksub) {
-            for (int j = 0, joffset = 0; j < ksub; ++j, joffset += dsub) {
-                for (int k = 0; k < dsub; ++k) {
-                    final float diff = feature[foffset + k] - pqCentroids[ioffset + joffset + k];
-                    codeTable[toffset + j] += diff * diff;
+    /**
+     * Sums the table entries of codes encoded by {@link #encode(short[], byte[], int)}. The width
+     * of a code is told apart by the encoded length, so codes written with a wider format than
+     * {@link #getCodeSize()} (e.g. two bytes per code by older versions) are still accepted.
+     */
+    public float getDistance(float[] codeTable, byte[] codes, int offset, int length) {
+        float distance = 0;
+        if (length == m) {
+            for (int i = 0, toffset = 0; i < m; ++i, toffset += ksub) {
+                distance += codeTable[toffset + (codes[offset + i] & 0xff)];
+            }
+        } else if (length == 2 * m) {
+            for (int i = 0, j = offset, toffset = 0; i < m; ++i, j += 2, toffset += ksub) {
+                distance += codeTable[toffset + (((codes[j] & 0xff) << 8) | (codes[j + 1] & 0xff))];
+            }
+        } else if (length == (m + 1) / 2) {
+            int i = 0;
+            for (int j = offset, toffset = 0; i + 1 < m; i += 2, ++j, toffset += 2 * ksub) {
+                final int code = codes[j];
+                distance += codeTable[toffset + (code & 0x0f)];
+                distance += codeTable[toffset + ksub + ((code >>> 4) & 0x0f)];
+            }
+            if (i < m) {
+                distance += codeTable[i * ksub + (codes[offset + i / 2] & 0x0f)];
+            }
+        } else {
+            throw new IllegalArgumentException("illegal code length [" + length + "] for m [" + m + "]");
+        }
+        return distance;
+    }
+
+    /**
+     * Writes the sub-quantizers to {@code order} by decreasing variance of their entries in the
+     * table. Summing the entries in this order lets a partial sum exceed a threshold the soonest,
+     * see {@link #getDistance(float[], byte[], int, int, int[], float[], float)}.
+     */
+    public void getSumOrder(float[] codeTable, int[] order) {
+        long[] keys = new long[m];
+        for (int i = 0, toffset = 0; i < m; ++i, toffset += ksub) {
+            float mean = 0;
+            for (int j = 0; j < ksub; ++j) {
+                mean += codeTable[toffset + j];
+            }
+            mean /= ksub;
+            float variance = 0;
+            for (int j = 0; j < ksub; ++j) {
+                final float diff = codeTable[toffset + j] - mean;
+                variance += diff * diff;
+            }
+            // non-negative floats order like their bits
+            keys[i] = ((long) Float.floatToIntBits(variance) << 32) | i;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < m; ++i) {
+            order[i] = (int) keys[m - 1 - i];
+        }
+    }
+
+    /**
+     * Writes to {@code bounds[i]} the sum of the smallest entries of the sub-quantizers
+     * {@code order[i:]}, and {@code 0} to {@code bounds[m]}. No code has a smaller distance than
+     * {@code bounds[0]}, nor a smaller remaining sum after the first {@code i} sub-quantizers than
+     * {@code bounds[i]}.
+     */
+    public void getLowerBounds(float[] codeTable, int[] order, float[] bounds) {
+        bounds[m] = 0;
+        for (int i = m - 1; i >= 0; --i) {
+            final int toffset = order[i] * ksub;
+            float min = codeTable[toffset];
+            for (int j = 1; j < ksub; ++j) {
+                min = Math.min(min, codeTable[toffset + j]);
+            }
+            bounds[i] = bounds[i + 1] + min;
+        }
+    }
+
+    /**
+     * Sums the table entries of the codes in the given order like
+     * {@link #getDistance(float[], byte[], int, int)}, but gives up as soon as the partial sum and
+     * the bound of the remaining sub-quantizers exceed the threshold, returning that lower bound
+     * instead. Distances not larger than the threshold are always summed in full.
+     */
+    public float getDistance(float[] codeTable, byte[] codes, int offset, int length, int[] order, float[] bounds,
+                             float threshold) {
+        float distance = 0;
+        if (length == m) {
+            for (int i = 0; i < m; ++i) {
+                final int s = order[i];
+                distance += codeTable[s * ksub + (codes[offset + s] & 0xff)];
+                if (distance + bounds[i + 1] > threshold) {
+                    return distance + bounds[i + 1];
+                }
+            }
+        } else if (length == 2 * m) {
+            for (int i = 0; i < m; ++i) {
+                final int s = order[i];
+                final int j = offset + 2 * s;
+                distance += codeTable[s * ksub + (((codes[j] & 0xff) << 8) | (codes[j + 1] & 0xff))];
+                if (distance + bounds[i + 1] > threshold) {
+                    return distance + bounds[i + 1];
                 }
             }
+        } else if (length == (m + 1) / 2) {
+            for (int i = 0; i < m; ++i) {
+                final int s = order[i];
+                distance += codeTable[s * ksub + ((codes[offset + s / 2] >>> ((s & 1) << 2)) & 0x0f)];
+                if (distance + bounds[i + 1] > threshold) {
+                    return distance + bounds[i + 1];
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("illegal code length [" + length + "] for m [" + m + "]");
+        }
+        return distance;
+    }
+
+    /**
+     * Returns the number of bytes {@link #encode(short[], byte[], int)} writes, a nibble per code
+     * when {@code ksub <= 16}, a byte when {@code ksub <= 256} and two bytes otherwise.
+     */
+    public int getCodeSize() {
+        if (ksub <= 16) {
+            return (m + 1) / 2;
+        } else if (ksub <= 256) {
+            return m;
         }
+        return 2 * m;
+    }
+
+    public byte[] encode(short[] codes) {
+        byte[] bytes = new byte[getCodeSize()];
+        encode(codes, bytes, 0);
+        return bytes;
+    }
+
+    public void encode(short[] codes, byte[] bytes, int offset) {
+        if (ksub <= 16) {
+            for (int i = 0; i < m; ++i) {
+                if ((i & 1) == 0) {
+                    bytes[offset + i / 2] = (byte) (codes[i] & 0x0f);
+                } else {
+                    bytes[offset + i / 2] |= (byte) ((codes[i] & 0x0f) << 4);
+                }
+            }
+        } else if (ksub <= 256) {
+            for (int i = 0; i < m; ++i) {
+                bytes[offset + i] = (byte) codes[i];
+            }
+        } else {
+            for (int i = 0, j = offset; i < m; ++i, j += 2) {
+                bytes[j] = (byte) (codes[i] >>> 8);
+                bytes[j + 1] = (byte) codes[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sub-quantizers, and so of codes per vector.
+     */
+    public int getM() {
+        return m;
+    }
+
+    /**
+     * Returns the number of entries of a distance table, {@code m * ksub}.
+     */
+    public int getCodeTableSize() {
+        return m * ksub;
+    }
+
+    public float[] getCodeTable(float[] feature) {
+        final float[] codeTable = new float[m * ksub];
+        getCodeTable(feature, codeTable);
         return codeTable;
     }
 
+    /**
+     * Writes the {@code m * ksub} distances between the sub-vectors of the vector and the
+     * sub-quantizer centroids to {@code codeTable}.
+     */
+    public void getCodeTable(float[] feature, float[] codeTable) {
+        for (int i = 0, coffset = 0, foffset = 0, toffset = 0; i < m; ++i, foffset += dsub, toffset += ksub) {
+            for (int j = 0; j < ksub; ++j, coffset += dsub) {
+                codeTable[toffset + j] = AlgebraicOps.l2distance(feature, foffset, pqCentroids, coffset, dsub);
+            }
+        }
+    }
+
+    /**
+     * Writes the {@code m * ksub} negated inner products between the sub-vectors of the vector and
+     * the sub-quantizer centroids to {@code codeTable}, so that {@link #getDistance} of a document's
+     * codes is the negated inner product between the vector and the document's residual.
+     */
+    public void getInnerProductTable(float[] feature, float[] codeTable) {
+        for (int i = 0, coffset = 0, foffset = 0, toffset = 0; i < m; ++i, foffset += dsub, toffset += ksub) {
+            for (int j = 0; j < ksub; ++j, coffset += dsub) {
+                codeTable[toffset + j] = -AlgebraicOps.dot(feature, foffset, pqCentroids, coffset, dsub);
+            }
+        }
+    }
+
     public short[] getCodes(float[] feature) {
         short[] codes = new short[m];
-        float[] fpart = new float[dsub];
-        float[] cpart = new float[ksub * dsub];
-        for (int i = 0, ioffset = 0; i < m; ++i, ioffset += dsub) {
-            System.arraycopy(feature, ioffset, fpart, 0, dsub);
-            System.arraycopy(pqCentroids, ksub * ioffset, cpart, 0, ksub * dsub);
-            codes[i] = (short) AlgebraicOps.findNearest(fpart, cpart, ksub, dsub);
-        }
+        getCodes(feature, codes);
         return codes;
     }
 
+    public void getCodes(float[] feature, short[] codes) {
+        for (int i = 0, foffset = 0; i < m; ++i, foffset += dsub) {
+            codes[i] = (short) AlgebraicOps.findNearest(feature, foffset, pqCentroids, ksub * foffset, ksub, dsub);
+        }
+    }
+
+    /**
+     * Quantizes the vector and writes its encoded codes, the same bytes as
+     * {@code encode(getCodes(feature), bytes, offset)} without the intermediate arrays.
+     */
+    public void quantize(float[] feature, byte[] bytes, int offset) {
+        if (ksub <= 16) {
+            for (int i = 0, foffset = 0; i < m; ++i, foffset += dsub) {
+                final int code = AlgebraicOps.findNearest(feature, foffset, pqCentroids, ksub * foffset, ksub, dsub);
+                if ((i & 1) == 0) {
+                    bytes[offset + i / 2] = (byte) (code & 0x0f);
+                } else {
+                    bytes[offset + i / 2] |= (byte) ((code & 0x0f) << 4);
+                }
+            }
+        } else if (ksub <= 256) {
+            for (int i = 0, foffset = 0; i < m; ++i, foffset += dsub) {
+                bytes[offset + i] = (byte) AlgebraicOps.findNearest(feature, foffset, pqCentroids, ksub * foffset,
+                        ksub, dsub);
+            }
+        } else {
+            for (int i = 0, foffset = 0, j = offset; i < m; ++i, foffset += dsub, j += 2) {
+                final int code = AlgebraicOps.findNearest(feature, foffset, pqCentroids, ksub * foffset, ksub, dsub);
+                bytes[j] = (byte) (code >>> 8);
+                bytes[j + 1] = (byte) code;
+            }
+        }
+    }
+
 }
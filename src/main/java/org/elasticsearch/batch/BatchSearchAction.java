@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.batch;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class BatchSearchAction extends Action<BatchSearchRequest, BatchSearchResponse, BatchSearchRequestBuilder> {
+
+    public static final BatchSearchAction INSTANCE = new BatchSearchAction();
+
+    public static final String NAME = "indices:data/read/ann/search";
+
+    private BatchSearchAction() {
+        super(NAME);
+    }
+
+    @Override
+    public BatchSearchRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new BatchSearchRequestBuilder(client, this);
+    }
+
+    @Override
+    public BatchSearchResponse newResponse() {
+        return new BatchSearchResponse();
+    }
+}
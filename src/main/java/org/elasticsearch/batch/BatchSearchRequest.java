@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.batch;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.ann.ArrayUtils;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ObjectParser;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.ScoreMode;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Searches the nearest documents of many vectors of the same {@code ivfpq} field in one request.
+ */
+public class BatchSearchRequest extends BroadcastRequest<BatchSearchRequest> {
+
+    static final ParseField FIELD_FIELD = new ParseField("field");
+    static final ParseField VECTORS_FIELD = new ParseField("vectors");
+    static final ParseField NPROBE_FIELD = new ParseField("nprobe");
+    static final ParseField SIZE_FIELD = new ParseField("size");
+    static final ParseField SCORE_MODE_FIELD = new ParseField("score_mode");
+
+    private static final ObjectParser<BatchSearchRequest, Void> PARSER =
+            new ObjectParser<>("batch_search", BatchSearchRequest::new);
+
+    static {
+        PARSER.declareString(BatchSearchRequest::field, FIELD_FIELD);
+        PARSER.declareField(BatchSearchRequest::vectors, BatchSearchRequest::parseVectors, VECTORS_FIELD,
+                ObjectParser.ValueType.VALUE_ARRAY);
+        PARSER.declareInt(BatchSearchRequest::nprobe, NPROBE_FIELD);
+        PARSER.declareInt(BatchSearchRequest::size, SIZE_FIELD);
+        PARSER.declareString((request, value) -> request.scoreMode(ScoreMode.fromString(value)), SCORE_MODE_FIELD);
+    }
+
+    public static final int DEFAULT_NPROBE = 3;
+    public static final int DEFAULT_SIZE = 10;
+
+    private String field;
+
+    private float[][] vectors;
+
+    private int nprobe = DEFAULT_NPROBE;
+
+    private int size = DEFAULT_SIZE;
+
+    private ScoreMode scoreMode = ScoreMode.SIMILARITY;
+
+    /**
+     * When the coordinating node started executing the request, not serialized.
+     */
+    long startTimeInMillis;
+
+    public BatchSearchRequest(String... indices) {
+        super(indices);
+    }
+
+    public static BatchSearchRequest fromXContent(XContentParser parser, BatchSearchRequest request)
+            throws IOException {
+        return PARSER.parse(parser, request, null);
+    }
+
+    /**
+     * Parses an array of vectors, each in any of the formats the {@code ivfpq_query} accepts.
+     */
+    private static float[][] parseVectors(XContentParser parser) throws IOException {
+        float[][] vectors = new float[16][];
+        int n = 0;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            float[] vector;
+            if (token == XContentParser.Token.START_ARRAY) {
+                vector = parseFloatArray(parser);
+            } else if (token == XContentParser.Token.VALUE_EMBEDDED_OBJECT) {
+                byte[] bytes = parser.binaryValue();
+                vector = new float[bytes.length / 4];
+                ArrayUtils.decodeFloatArray(bytes, 0, bytes.length, vector);
+            } else if (token == XContentParser.Token.VALUE_STRING) {
+                vector = ArrayUtils.parseFloatArray(parser.text());
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + VECTORS_FIELD.getPreferredName() + "] must only contain vectors, found [" + token + "]");
+            }
+            if (n == vectors.length) {
+                vectors = Arrays.copyOf(vectors, n * 2);
+            }
+            vectors[n++] = vector;
+        }
+        return Arrays.copyOf(vectors, n);
+    }
+
+    private static float[] parseFloatArray(XContentParser parser) throws IOException {
+        float[] floats = new float[16];
+        int size = 0;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token != XContentParser.Token.VALUE_NUMBER) {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + VECTORS_FIELD.getPreferredName() + "] must only contain numbers, found [" + token + "]");
+            }
+            if (size == floats.length) {
+                floats = Arrays.copyOf(floats, size * 2);
+            }
+            floats[size++] = parser.floatValue();
+        }
+        return Arrays.copyOf(floats, size);
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException e = super.validate();
+        if (field == null) {
+            e = addValidationError("[field] is missing", e);
+        }
+        if (vectors == null || vectors.length == 0) {
+            e = addValidationError("[vectors] is missing", e);
+        } else {
+            for (float[] vector : vectors) {
+                if (vector.length == 0 || vector.length != vectors[0].length) {
+                    e = addValidationError("[vectors] must all have the same, positive dimension", e);
+                    break;
+                }
+            }
+        }
+        if (nprobe <= 0) {
+            e = addValidationError("[nprobe] must be positive", e);
+        }
+        if (size <= 0) {
+            e = addValidationError("[size] must be positive", e);
+        }
+        return e;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        vectors = new float[in.readVInt()][];
+        for (int i = 0; i < vectors.length; ++i) {
+            vectors[i] = in.readFloatArray();
+        }
+        nprobe = in.readVInt();
+        size = in.readVInt();
+        scoreMode = ScoreMode.readFromStream(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeVInt(vectors.length);
+        for (float[] vector : vectors) {
+            out.writeFloatArray(vector);
+        }
+        out.writeVInt(nprobe);
+        out.writeVInt(size);
+        scoreMode.writeTo(out);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public BatchSearchRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public float[][] vectors() {
+        return vectors;
+    }
+
+    public BatchSearchRequest vectors(float[][] vectors) {
+        this.vectors = vectors;
+        return this;
+    }
+
+    public int nprobe() {
+        return nprobe;
+    }
+
+    public BatchSearchRequest nprobe(int nprobe) {
+        this.nprobe = nprobe;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public BatchSearchRequest size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    public ScoreMode scoreMode() {
+        return scoreMode;
+    }
+
+    public BatchSearchRequest scoreMode(ScoreMode scoreMode) {
+        this.scoreMode = scoreMode;
+        return this;
+    }
+}
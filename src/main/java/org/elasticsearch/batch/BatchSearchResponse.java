@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.batch;
+
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.action.RestActions;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The nearest documents of each vector of a {@link BatchSearchRequest}, in the order of the vectors.
+ */
+public class BatchSearchResponse extends BroadcastResponse {
+
+    private long tookInMillis;
+
+    private Hit[][] hits;
+
+    BatchSearchResponse() {
+    }
+
+    BatchSearchResponse(Hit[][] hits, long tookInMillis, int totalShards, int successfulShards, int failedShards,
+                        List<DefaultShardOperationFailedException> shardFailures) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.hits = hits;
+        this.tookInMillis = tookInMillis;
+    }
+
+    public Hit[][] getHits() {
+        return hits;
+    }
+
+    public long getTookInMillis() {
+        return tookInMillis;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        tookInMillis = in.readVLong();
+        hits = new Hit[in.readVInt()][];
+        for (int i = 0; i < hits.length; ++i) {
+            hits[i] = new Hit[in.readVInt()];
+            for (int j = 0; j < hits[i].length; ++j) {
+                hits[i][j] = new Hit(in.readString(), in.readString(), in.readFloat());
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVLong(tookInMillis);
+        out.writeVInt(hits.length);
+        for (Hit[] vectorHits : hits) {
+            out.writeVInt(vectorHits.length);
+            for (Hit hit : vectorHits) {
+                out.writeString(hit.index);
+                out.writeString(hit.id);
+                out.writeFloat(hit.score);
+            }
+        }
+    }
+
+    /**
+     * Writes the shards header and the hits of each vector, without the enclosing object.
+     */
+    public XContentBuilder toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        builder.field("took", tookInMillis);
+        RestActions.buildBroadcastShardsHeader(builder, params, this);
+        builder.startArray("responses");
+        for (Hit[] vectorHits : hits) {
+            builder.startObject();
+            builder.startArray("hits");
+            for (Hit hit : vectorHits) {
+                builder.startObject();
+                builder.field("_index", hit.index);
+                builder.field("_id", hit.id);
+                builder.field("_score", hit.score);
+                builder.endObject();
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+        return builder.endArray();
+    }
+
+    public static final class Hit {
+
+        private final String index;
+
+        private final String id;
+
+        private final float score;
+
+        Hit(String index, String id, float score) {
+            this.index = index;
+            this.id = id;
+            this.score = score;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.batch;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+
+/**
+ * The vectors of a {@link BatchSearchRequest} laid out one after the other, as the shards search
+ * them.
+ */
+public class ShardBatchSearchRequest extends BroadcastShardRequest {
+
+    private String field;
+
+    private int n;
+
+    private float[] vectors;
+
+    private int nprobe;
+
+    private int size;
+
+    public ShardBatchSearchRequest() {
+    }
+
+    ShardBatchSearchRequest(ShardId shardId, BatchSearchRequest request) {
+        super(shardId, request);
+        this.field = request.field();
+        this.n = request.vectors().length;
+        final int d = request.vectors()[0].length;
+        this.vectors = new float[n * d];
+        for (int i = 0; i < n; ++i) {
+            System.arraycopy(request.vectors()[i], 0, vectors, i * d, d);
+        }
+        this.nprobe = request.nprobe();
+        this.size = request.size();
+    }
+
+    String field() {
+        return field;
+    }
+
+    int n() {
+        return n;
+    }
+
+    float[] vectors() {
+        return vectors;
+    }
+
+    int nprobe() {
+        return nprobe;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        n = in.readVInt();
+        vectors = in.readFloatArray();
+        nprobe = in.readVInt();
+        size = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeVInt(n);
+        out.writeFloatArray(vectors);
+        out.writeVInt(nprobe);
+        out.writeVInt(size);
+    }
+}
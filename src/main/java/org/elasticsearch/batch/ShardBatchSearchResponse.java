@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.batch;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+
+/**
+ * The ids and approximate distances of the nearest documents of each vector in one shard,
+ * nearest first.
+ */
+public class ShardBatchSearchResponse extends BroadcastShardResponse {
+
+    private String[][] ids;
+
+    private float[][] distances;
+
+    public ShardBatchSearchResponse() {
+    }
+
+    ShardBatchSearchResponse(ShardId shardId, String[][] ids, float[][] distances) {
+        super(shardId);
+        this.ids = ids;
+        this.distances = distances;
+    }
+
+    String[][] ids() {
+        return ids;
+    }
+
+    float[][] distances() {
+        return distances;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        final int n = in.readVInt();
+        ids = new String[n][];
+        distances = new float[n][];
+        for (int i = 0; i < n; ++i) {
+            ids[i] = in.readStringArray();
+            distances[i] = in.readFloatArray();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(ids.length);
+        for (int i = 0; i < ids.length; ++i) {
+            out.writeStringArray(ids[i]);
+            out.writeFloatArray(distances[i]);
+        }
+    }
+}
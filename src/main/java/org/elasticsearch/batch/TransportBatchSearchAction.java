@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.batch;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.analysis.IvfpqAnalyzer;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.fieldvisitor.FieldsVisitor;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.search.IvfpqBatchSearch;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Searches every shard of the requested indices once for all vectors and merges the nearest
+ * documents of each vector on the coordinating node.
+ */
+public class TransportBatchSearchAction extends TransportBroadcastAction<BatchSearchRequest, BatchSearchResponse,
+        ShardBatchSearchRequest, ShardBatchSearchResponse> {
+
+    private final IndicesService indicesService;
+
+    @Inject
+    public TransportBatchSearchAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                      TransportService transportService, IndicesService indicesService,
+                                      ActionFilters actionFilters,
+                                      IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings, BatchSearchAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, BatchSearchRequest::new, ShardBatchSearchRequest::new,
+                ThreadPool.Names.SEARCH);
+        this.indicesService = indicesService;
+    }
+
+    @Override
+    protected void doExecute(Task task, BatchSearchRequest request, ActionListener<BatchSearchResponse> listener) {
+        request.startTimeInMillis = System.currentTimeMillis();
+        super.doExecute(task, request, listener);
+    }
+
+    @Override
+    protected ShardBatchSearchRequest newShardRequest(int numShards, ShardRouting shard, BatchSearchRequest request) {
+        return new ShardBatchSearchRequest(shard.shardId(), request);
+    }
+
+    @Override
+    protected ShardBatchSearchResponse newShardResponse() {
+        return new ShardBatchSearchResponse();
+    }
+
+    @Override
+    protected ShardBatchSearchResponse shardOperation(ShardBatchSearchRequest request, Task task) throws IOException {
+        final int n = request.n();
+        String[][] ids = new String[n][0];
+        float[][] distances = new float[n][0];
+        IndexService indexService = indicesService.indexServiceSafe(request.shardId().getIndex());
+        IndexShard indexShard = indexService.getShard(request.shardId().id());
+        MappedFieldType fieldType = indexService.mapperService().fullName(request.field());
+        if (fieldType == null) {
+            return new ShardBatchSearchResponse(request.shardId(), ids, distances);
+        }
+        Analyzer analyzer = fieldType.searchAnalyzer();
+        while (analyzer instanceof NamedAnalyzer) {
+            analyzer = ((NamedAnalyzer) analyzer).analyzer();
+        }
+        if (!(analyzer instanceof IvfpqAnalyzer)) {
+            throw new IllegalArgumentException("field [" + request.field() + "] is not an [ivfpq] field");
+        }
+        IvfpqAnalyzer ivfpqAnalyzer = (IvfpqAnalyzer) analyzer;
+        if (request.vectors().length != n * ivfpqAnalyzer.getDimension()) {
+            throw new IllegalArgumentException("expected vectors of dimension [" + ivfpqAnalyzer.getDimension()
+                    + "] but got [" + request.vectors().length / n + "]");
+        }
+        try (Engine.Searcher searcher = indexShard.acquireSearcher("ann_batch_search")) {
+            IvfpqBatchSearch.Hits[] hits = IvfpqBatchSearch.search(searcher.reader(), request.field(),
+                    ivfpqAnalyzer, request.vectors(), n, request.nprobe(), request.size());
+            for (int i = 0; i < n; ++i) {
+                ids[i] = new String[hits[i].size()];
+                distances[i] = new float[hits[i].size()];
+                for (int j = 0; j < ids[i].length; ++j) {
+                    FieldsVisitor visitor = new FieldsVisitor(false);
+                    searcher.searcher().doc(hits[i].doc(j), visitor);
+                    visitor.postProcess(indexService.mapperService());
+                    ids[i][j] = visitor.uid().id();
+                    distances[i][j] = hits[i].distance(j);
+                }
+            }
+        }
+        return new ShardBatchSearchResponse(request.shardId(), ids, distances);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected BatchSearchResponse newResponse(BatchSearchRequest request, AtomicReferenceArray shardsResponses,
+                                              ClusterState clusterState) {
+        final int n = request.vectors().length;
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<DefaultShardOperationFailedException> shardFailures = null;
+        List<List<Candidate>> candidates = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            candidates.add(new ArrayList<>());
+        }
+        for (int i = 0; i < shardsResponses.length(); ++i) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // a non active shard, ignore
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = new ArrayList<>();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException(
+                        (BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                successfulShards++;
+                ShardBatchSearchResponse response = (ShardBatchSearchResponse) shardResponse;
+                final String index = response.getIndex();
+                for (int j = 0; j < n; ++j) {
+                    for (int k = 0; k < response.ids()[j].length; ++k) {
+                        candidates.get(j).add(new Candidate(index, response.ids()[j][k], response.distances()[j][k]));
+                    }
+                }
+            }
+        }
+        BatchSearchResponse.Hit[][] hits = new BatchSearchResponse.Hit[n][];
+        for (int i = 0; i < n; ++i) {
+            List<Candidate> vectorCandidates = candidates.get(i);
+            vectorCandidates.sort((a, b) -> Float.compare(a.distance, b.distance));
+            hits[i] = new BatchSearchResponse.Hit[Math.min(request.size(), vectorCandidates.size())];
+            for (int j = 0; j < hits[i].length; ++j) {
+                Candidate candidate = vectorCandidates.get(j);
+                hits[i][j] = new BatchSearchResponse.Hit(candidate.index, candidate.id,
+                        request.scoreMode().score(candidate.distance));
+            }
+        }
+        final long took = System.currentTimeMillis() - request.startTimeInMillis;
+        return new BatchSearchResponse(hits, took, shardsResponses.length(), successfulShards, failedShards,
+                shardFailures);
+    }
+
+    @Override
+    protected GroupShardsIterator<ShardIterator> shards(ClusterState clusterState, BatchSearchRequest request,
+                                                       String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, null);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, BatchSearchRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, BatchSearchRequest request,
+                                                      String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    private static final class Candidate {
+
+        private final String index;
+
+        private final String id;
+
+        private final float distance;
+
+        Candidate(String index, String id, float distance) {
+            this.index = index;
+            this.id = id;
+            this.distance = distance;
+        }
+    }
+}
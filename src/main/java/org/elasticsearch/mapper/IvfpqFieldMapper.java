@@ -15,20 +15,27 @@ package org.elasticsearch.mapper;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
-import org.elasticsearch.analysis.CodeAttribute;
+import org.elasticsearch.analysis.IvfpqAnalyzer;
 import org.elasticsearch.ann.ArrayUtils;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.mapper.ArrayValueMapperParser;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.mapper.Mapper;
@@ -38,21 +45,34 @@ import org.elasticsearch.index.mapper.TypeParsers;
 import org.elasticsearch.index.query.QueryShardContext;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 
 
-public class IvfpqFieldMapper extends FieldMapper {
+public class IvfpqFieldMapper extends FieldMapper implements ArrayValueMapperParser {
 
     private static final Logger LOGGER = LogManager.getLogger(IvfpqFieldMapper.class);
 
     public static final String CONTENT_TYPE = "ivfpq";
 
+    public static final String CODES_STORAGE = "codes_storage";
+
+    public static final String STORE_VECTOR = "store_vector";
+
     protected IvfpqFieldMapper(String simpleName, MappedFieldType fieldType, MappedFieldType defaultFieldType,
                                Settings indexSettings, MultiFields multiFields, CopyTo copyTo) {
         super(simpleName, fieldType, defaultFieldType, indexSettings, multiFields, copyTo);
     }
 
+    @Override
+    public IvfpqFieldType fieldType() {
+        return (IvfpqFieldType) super.fieldType();
+    }
+
     @Override
     protected String contentType() {
         return CONTENT_TYPE;
@@ -61,33 +81,134 @@ public class IvfpqFieldMapper extends FieldMapper {
     @Override
     protected void parseCreateField(ParseContext context, List<IndexableField> fields)
             throws IOException {
-        String value;
+        IvfpqAnalyzer analyzer = getIvfpqAnalyzer();
+        // read into a per-thread buffer, only what the document keeps is allocated per value
+        float[] features = analyzer.vectorBuffer();
+        int size;
         if (context.externalValueSet()) {
-            value = context.externalValue().toString();
+            Object externalValue = context.externalValue();
+            if (externalValue instanceof float[]) {
+                // copied, normalizing must not change the caller's array
+                size = copy((float[]) externalValue, features);
+            } else {
+                size = copy(ArrayUtils.parseFloatArray(externalValue.toString()), features);
+            }
         } else {
             XContentParser parser = context.parser();
-            if (parser.currentToken() == XContentParser.Token.VALUE_NULL) {
-                value = fieldType().nullValueAsString();
+            XContentParser.Token token = parser.currentToken();
+            if (token == XContentParser.Token.VALUE_NULL) {
+                size = copy(ArrayUtils.parseFloatArray(fieldType().nullValueAsString()), features);
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                size = parseFloatArray(parser, features);
+            } else if (token == XContentParser.Token.VALUE_EMBEDDED_OBJECT) {
+                byte[] bytes = parser.binaryValue();
+                size = bytes.length / 4;
+                if (size == features.length) {
+                    ArrayUtils.decodeFloatArray(bytes, 0, bytes.length, features);
+                }
+            } else if (token == XContentParser.Token.VALUE_STRING && parser.hasTextCharacters()) {
+                size = parseFloatArray(CharBuffer.wrap(parser.textCharacters(), parser.textOffset(),
+                        parser.textLength()), features);
             } else {
-                value = parser.textOrNull();
+                size = copy(ArrayUtils.parseFloatArray(parser.textOrNull()), features);
             }
         }
-        if (value == null) {
+        if (size == 0) {
+            return;
+        }
+        if (size != analyzer.getDimension()) {
+            throw new IllegalArgumentException("vector of field [" + name() + "] has dimension ["
+                    + size + "] but analyzer expects [" + analyzer.getDimension() + "]");
+        }
+        // cosine vectors are encoded and stored normalized, the rotation only applies to the codes
+        byte[] codes = new byte[analyzer.getProductQuantizer().getCodeSize()];
+        int coarseCenterId = analyzer.encode(features, codes, 0);
+        if (coarseCenterId == -1) {
             return;
         }
-        NamedAnalyzer indexAnalyzer = fieldType.indexAnalyzer();
-        try (TokenStream tokenStream = indexAnalyzer.tokenStream(name(), value)) {
-            final CharTermAttribute charTermAttribute =
-                    tokenStream.addAttribute(CharTermAttribute.class);
-            final CodeAttribute codeAttribute = tokenStream.addAttribute(CodeAttribute.class);
-            tokenStream.reset();
-            if (tokenStream.incrementToken()) {
-                fields.add(new StringField(name(), charTermAttribute.toString(), Field.Store.NO));
-                BytesRef bytes = new BytesRef(ArrayUtils.encodeShortArray(codeAttribute.getCodes()));
-                fields.add(new StoredField(getCodesField(name()), bytes));
+        createCodesFields(name(), fieldType().codesStorage(), coarseCenterId, codes, fields);
+        if (fieldType().storeVector()) {
+            byte[] vector = ArrayUtils.encodeFloatArray(features);
+            fields.add(new BinaryDocValuesField(getVectorField(name()), new BytesRef(vector)));
+        }
+    }
+
+    /**
+     * Adds the fields that index the codes of a vector assigned to the given coarse centroid, the
+     * centroid term and, unless they are its payload, the codes, as laid out by the codes storage.
+     */
+    public static void createCodesFields(String name, CodesStorage codesStorage, int coarseCenterId, byte[] codes,
+                                         List<IndexableField> fields) {
+        String coarseCenter = String.valueOf(coarseCenterId);
+        BytesRef bytes = new BytesRef(codes);
+        switch (codesStorage) {
+            case POSTINGS:
+                fields.add(new Field(name, new CodesTokenStream(coarseCenter, bytes), Defaults.POSTINGS_FIELD_TYPE));
+                break;
+            case DOC_VALUES:
+                fields.add(new StringField(name, coarseCenter, Field.Store.NO));
+                fields.add(new BinaryDocValuesField(getCodesField(name), bytes));
+                break;
+            default:
+                fields.add(new StringField(name, coarseCenter, Field.Store.NO));
+                fields.add(new StoredField(getCodesField(name), bytes));
+        }
+    }
+
+    /**
+     * Reads a JSON array of numbers without going through text. Returns the number of values, of
+     * which only the first {@code floats.length} are stored.
+     */
+    private static int parseFloatArray(XContentParser parser, float[] floats) throws IOException {
+        int size = 0;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token != XContentParser.Token.VALUE_NUMBER) {
+                throw new MapperParsingException("vectors must only contain numbers, found [" + token + "]");
+            }
+            if (size < floats.length) {
+                floats[size] = parser.floatValue();
             }
-            tokenStream.end();
+            size++;
         }
+        return size;
+    }
+
+    /**
+     * Parses comma separated values straight from the parser's characters, anything else goes
+     * through {@link ArrayUtils#parseFloatArray(String)}. Returns the number of values, see
+     * {@link #parseFloatArray(XContentParser, float[])}.
+     */
+    private static int parseFloatArray(CharSequence text, float[] floats) {
+        for (int i = 0; i < text.length(); ++i) {
+            if (text.charAt(i) == ',') {
+                return ArrayUtils.parseFloatArrayCsv(text, floats);
+            }
+        }
+        return copy(ArrayUtils.parseFloatArray(text.toString()), floats);
+    }
+
+    /**
+     * Copies {@code values} to {@code floats} if they have the same length and returns the number
+     * of values.
+     */
+    private static int copy(float[] values, float[] floats) {
+        if (values.length == floats.length) {
+            System.arraycopy(values, 0, floats, 0, values.length);
+        }
+        return values.length;
+    }
+
+    private IvfpqAnalyzer getIvfpqAnalyzer() {
+        Analyzer analyzer = fieldType().indexAnalyzer();
+        while (analyzer instanceof NamedAnalyzer) {
+            analyzer = ((NamedAnalyzer) analyzer).analyzer();
+        }
+        if (!(analyzer instanceof IvfpqAnalyzer)) {
+            throw new MapperParsingException("field [" + name() + "] requires an ivfpq_analyzer but has ["
+                    + analyzer + "]");
+        }
+        return (IvfpqAnalyzer) analyzer;
     }
 
     @Override
@@ -95,13 +216,92 @@ public class IvfpqFieldMapper extends FieldMapper {
             throws IOException {
         super.doXContentBody(builder, includeDefaults, params);
         doXContentAnalyzers(builder, includeDefaults);
+        if (includeDefaults || fieldType().codesStorage() != Defaults.CODES_STORAGE) {
+            builder.field(CODES_STORAGE, fieldType().codesStorage().toString());
+        }
+        if (includeDefaults || fieldType().storeVector() != Defaults.STORE_VECTOR) {
+            builder.field(STORE_VECTOR, fieldType().storeVector());
+        }
+    }
+
+    /**
+     * Where the product quantization codes of a document are kept. Segments written with
+     * {@link #STORED} stay readable after switching a mapping to {@link #DOC_VALUES}, the
+     * search side falls back to stored fields for documents without doc values.
+     * {@link #POSTINGS} keeps the codes as payloads of the coarse centroid term, so that an
+     * inverted list is read sequentially together with its codes. It changes how the centroid
+     * term itself is indexed and therefore can't be switched on or off for an existing field.
+     */
+    public enum CodesStorage {
+        STORED,
+        DOC_VALUES,
+        POSTINGS;
+
+        public static CodesStorage fromString(String value) {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
     }
 
     static class Defaults {
+        static final CodesStorage CODES_STORAGE = CodesStorage.DOC_VALUES;
+
+        static final boolean STORE_VECTOR = false;
+
         static final MappedFieldType FIELD_TYPE = new IvfpqFieldType();
 
+        static final FieldType POSTINGS_FIELD_TYPE = new FieldType();
+
         static {
             FIELD_TYPE.freeze();
+            POSTINGS_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+            POSTINGS_FIELD_TYPE.setTokenized(true);
+            POSTINGS_FIELD_TYPE.setOmitNorms(true);
+            POSTINGS_FIELD_TYPE.setStored(false);
+            POSTINGS_FIELD_TYPE.freeze();
+        }
+    }
+
+    /**
+     * Emits the coarse centroid term once, carrying the encoded codes as its payload.
+     */
+    private static final class CodesTokenStream extends TokenStream {
+
+        private final CharTermAttribute charTermAttribute = addAttribute(CharTermAttribute.class);
+
+        private final PayloadAttribute payloadAttribute = addAttribute(PayloadAttribute.class);
+
+        private final String coarseCenter;
+
+        private final BytesRef codes;
+
+        private boolean consumed;
+
+        CodesTokenStream(String coarseCenter, BytesRef codes) {
+            this.coarseCenter = coarseCenter;
+            this.codes = codes;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (consumed) {
+                return false;
+            }
+            clearAttributes();
+            charTermAttribute.append(coarseCenter);
+            payloadAttribute.setPayload(codes);
+            consumed = true;
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            consumed = false;
         }
     }
 
@@ -111,6 +311,23 @@ public class IvfpqFieldMapper extends FieldMapper {
                                           ParserContext parserContext) throws MapperParsingException {
             Builder builder = new Builder(name);
             TypeParsers.parseTextField(builder, name, node, parserContext);
+            for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, Object> entry = iterator.next();
+                if (entry.getKey().equals(CODES_STORAGE)) {
+                    try {
+                        builder.codesStorage(CodesStorage.fromString(
+                                XContentMapValues.nodeStringValue(entry.getValue(), null)));
+                    } catch (IllegalArgumentException | NullPointerException e) {
+                        throw new MapperParsingException("illegal [" + CODES_STORAGE + "] value ["
+                                + entry.getValue() + "] for field [" + name + "]");
+                    }
+                    iterator.remove();
+                } else if (entry.getKey().equals(STORE_VECTOR)) {
+                    builder.storeVector(XContentMapValues.nodeBooleanValue(entry.getValue(),
+                            name + "." + STORE_VECTOR));
+                    iterator.remove();
+                }
+            }
             return builder;
         }
     }
@@ -123,6 +340,21 @@ public class IvfpqFieldMapper extends FieldMapper {
             builder = this;
         }
 
+        @Override
+        public IvfpqFieldType fieldType() {
+            return (IvfpqFieldType) super.fieldType();
+        }
+
+        public Builder codesStorage(CodesStorage codesStorage) {
+            fieldType().setCodesStorage(codesStorage);
+            return builder;
+        }
+
+        public Builder storeVector(boolean storeVector) {
+            fieldType().setStoreVector(storeVector);
+            return builder;
+        }
+
         @Override
         public IvfpqFieldMapper build(BuilderContext context) {
             setupFieldType(context);
@@ -133,11 +365,39 @@ public class IvfpqFieldMapper extends FieldMapper {
 
 
     public static class IvfpqFieldType extends MappedFieldType {
+
+        private CodesStorage codesStorage = Defaults.CODES_STORAGE;
+
+        private boolean storeVector = Defaults.STORE_VECTOR;
+
         IvfpqFieldType() {
         }
 
         IvfpqFieldType(IvfpqFieldType ref) {
             super(ref);
+            this.codesStorage = ref.codesStorage;
+            this.storeVector = ref.storeVector;
+        }
+
+        public CodesStorage codesStorage() {
+            return codesStorage;
+        }
+
+        public void setCodesStorage(CodesStorage codesStorage) {
+            checkIfFrozen();
+            this.codesStorage = codesStorage;
+        }
+
+        /**
+         * Whether the original vector is kept in doc values for exact re-ranking.
+         */
+        public boolean storeVector() {
+            return storeVector;
+        }
+
+        public void setStoreVector(boolean storeVector) {
+            checkIfFrozen();
+            this.storeVector = storeVector;
         }
 
         @Override
@@ -160,9 +420,37 @@ public class IvfpqFieldMapper extends FieldMapper {
             return new IvfpqFieldType(this);
         }
 
+        @Override
+        public void checkCompatibility(MappedFieldType other, List<String> conflicts, boolean strict) {
+            super.checkCompatibility(other, conflicts, strict);
+            CodesStorage otherStorage = ((IvfpqFieldType) other).codesStorage();
+            if (codesStorage != otherStorage
+                    && (codesStorage == CodesStorage.POSTINGS || otherStorage == CodesStorage.POSTINGS)) {
+                conflicts.add("mapper [" + name() + "] has different [" + CODES_STORAGE + "] values");
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!super.equals(o)) {
+                return false;
+            }
+            IvfpqFieldType that = (IvfpqFieldType) o;
+            return codesStorage == that.codesStorage && storeVector == that.storeVector;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), codesStorage, storeVector);
+        }
+
     }
 
     public static String getCodesField(String field) {
         return field + ".pq";
     }
+
+    public static String getVectorField(String field) {
+        return field + ".vector";
+    }
 }
@@ -14,29 +14,112 @@
 package org.elasticsearch.plugin;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.analysis.IvfpqAnalyzerProvider;
+import org.elasticsearch.analysis.QuantizerRegistry;
+import org.elasticsearch.batch.BatchSearchAction;
+import org.elasticsearch.batch.RestBatchSearchAction;
+import org.elasticsearch.batch.TransportBatchSearchAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.analysis.AnalyzerProvider;
 import org.elasticsearch.index.mapper.Mapper;
 import org.elasticsearch.indices.analysis.AnalysisModule;
 import org.elasticsearch.mapper.IvfpqFieldMapper;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.AnnSearchMetrics;
+import org.elasticsearch.search.CodeTableCache;
 import org.elasticsearch.search.IvfpqQueryBuilder;
+import org.elasticsearch.search.ParallelScan;
+import org.elasticsearch.search.ResultCache;
+import org.elasticsearch.stats.AnnStatsAction;
+import org.elasticsearch.stats.RestAnnStatsAction;
+import org.elasticsearch.stats.TransportAnnStatsAction;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.train.RestTrainAction;
+import org.elasticsearch.train.TrainAction;
+import org.elasticsearch.train.TransportTrainAction;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
-public class AnnPlugin extends Plugin implements AnalysisPlugin, MapperPlugin, SearchPlugin {
+public class AnnPlugin extends Plugin implements ActionPlugin, AnalysisPlugin, MapperPlugin, SearchPlugin {
+
+    private final CodeTableCache codeTableCache;
+
+    private final ParallelScan parallelScan;
+
+    private final QuantizerRegistry quantizerRegistry = new QuantizerRegistry();
+
+    private final AnnSearchMetrics searchMetrics = new AnnSearchMetrics();
+
+    private final ResultCache resultCache;
+
+    public AnnPlugin(Settings settings) {
+        this.codeTableCache = new CodeTableCache(settings);
+        this.parallelScan = new ParallelScan(settings);
+        this.resultCache = new ResultCache(settings);
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(CodeTableCache.SIZE_SETTING, ParallelScan.PARALLELISM_SETTING, ResultCache.SIZE_SETTING);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        return Collections.singletonList(ParallelScan.executorBuilder(settings));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService,
+                                               ScriptService scriptService, NamedXContentRegistry xContentRegistry,
+                                               Environment environment, NodeEnvironment nodeEnvironment,
+                                               NamedWriteableRegistry namedWriteableRegistry) {
+        parallelScan.start(threadPool, clusterService.getClusterSettings());
+        return Arrays.asList(codeTableCache, parallelScan, quantizerRegistry, searchMetrics, resultCache);
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        indexModule.addIndexEventListener(quantizerRegistry);
+    }
 
     @Override
     public Map<String, AnalysisModule.AnalysisProvider<AnalyzerProvider<? extends Analyzer>>> getAnalyzers() {
         Map<String, AnalysisModule.AnalysisProvider<AnalyzerProvider<? extends Analyzer>>>
                 analyzers = new HashMap<>();
-        analyzers.put("ivfpq_analyzer", IvfpqAnalyzerProvider::new);
+        analyzers.put("ivfpq_analyzer", (indexSettings, environment, name, settings) ->
+                new IvfpqAnalyzerProvider(indexSettings, environment, name, settings, quantizerRegistry));
         return analyzers;
     }
 
@@ -50,8 +133,30 @@ public class AnnPlugin extends Plugin implements AnalysisPlugin, MapperPlugin, S
     @Override
     public List<QuerySpec<?>> getQueries() {
         List<QuerySpec<?>> queries = new ArrayList<>();
-        queries.add(new QuerySpec<>(IvfpqQueryBuilder.NAME, IvfpqQueryBuilder::new,
-                IvfpqQueryBuilder::fromXContent));
+        queries.add(new QuerySpec<>(IvfpqQueryBuilder.NAME,
+                in -> new IvfpqQueryBuilder(in, codeTableCache, parallelScan, searchMetrics, resultCache),
+                parser -> IvfpqQueryBuilder.fromXContent(parser, codeTableCache, parallelScan, searchMetrics,
+                        resultCache)));
         return queries;
     }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(
+                new ActionHandler<>(TrainAction.INSTANCE, TransportTrainAction.class),
+                new ActionHandler<>(BatchSearchAction.INSTANCE, TransportBatchSearchAction.class),
+                new ActionHandler<>(AnnStatsAction.INSTANCE, TransportAnnStatsAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+                                             ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings,
+                                             SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Arrays.asList(
+                new RestTrainAction(settings, restController),
+                new RestBatchSearchAction(settings, restController),
+                new RestAnnStatsAction(settings, restController));
+    }
 }
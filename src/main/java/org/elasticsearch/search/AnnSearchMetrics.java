@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+
+/**
+ * Node level counters of the work done by ivfpq queries, summed over all shards and fields.
+ */
+public class AnnSearchMetrics {
+
+    private final CounterMetric queries = new CounterMetric();
+
+    private final CounterMetric probedLists = new CounterMetric();
+
+    private final CounterMetric skippedLists = new CounterMetric();
+
+    private final CounterMetric scoredCandidates = new CounterMetric();
+
+    private final CounterMetric prunedCandidates = new CounterMetric();
+
+    private final CounterMetric codesReadInBytes = new CounterMetric();
+
+    private final CounterMetric coarseNanos = new CounterMetric();
+
+    private final CounterMetric codeTableNanos = new CounterMetric();
+
+    private final CounterMetric filterNanos = new CounterMetric();
+
+    private final CounterMetric scanNanos = new CounterMetric();
+
+    void add(QueryBreakdown breakdown) {
+        queries.inc();
+        probedLists.inc(breakdown.probedLists);
+        skippedLists.inc(breakdown.skippedLists);
+        scoredCandidates.inc(breakdown.scoredCandidates);
+        prunedCandidates.inc(breakdown.prunedCandidates);
+        codesReadInBytes.inc(breakdown.codesReadInBytes);
+        coarseNanos.inc(breakdown.coarseNanos);
+        codeTableNanos.inc(breakdown.codeTableNanos);
+        filterNanos.inc(breakdown.filterNanos);
+        scanNanos.inc(breakdown.scanNanos);
+    }
+
+    public AnnSearchStats stats() {
+        return new AnnSearchStats(queries.count(), probedLists.count(), skippedLists.count(),
+                scoredCandidates.count(), prunedCandidates.count(), codesReadInBytes.count(), coarseNanos.count(),
+                codeTableNanos.count(), filterNanos.count(), scanNanos.count());
+    }
+}
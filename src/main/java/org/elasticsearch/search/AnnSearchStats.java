@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class AnnSearchStats implements Writeable, ToXContentFragment {
+
+    private final long queries;
+
+    private final long probedLists;
+
+    private final long skippedLists;
+
+    private final long scoredCandidates;
+
+    private final long prunedCandidates;
+
+    private final long codesReadInBytes;
+
+    private final long coarseNanos;
+
+    private final long codeTableNanos;
+
+    private final long filterNanos;
+
+    private final long scanNanos;
+
+    public AnnSearchStats(long queries, long probedLists, long skippedLists, long scoredCandidates,
+                          long prunedCandidates, long codesReadInBytes, long coarseNanos, long codeTableNanos,
+                          long filterNanos, long scanNanos) {
+        this.queries = queries;
+        this.probedLists = probedLists;
+        this.skippedLists = skippedLists;
+        this.scoredCandidates = scoredCandidates;
+        this.prunedCandidates = prunedCandidates;
+        this.codesReadInBytes = codesReadInBytes;
+        this.coarseNanos = coarseNanos;
+        this.codeTableNanos = codeTableNanos;
+        this.filterNanos = filterNanos;
+        this.scanNanos = scanNanos;
+    }
+
+    public AnnSearchStats(StreamInput in) throws IOException {
+        queries = in.readVLong();
+        probedLists = in.readVLong();
+        skippedLists = in.readVLong();
+        scoredCandidates = in.readVLong();
+        prunedCandidates = in.readVLong();
+        codesReadInBytes = in.readVLong();
+        coarseNanos = in.readVLong();
+        codeTableNanos = in.readVLong();
+        filterNanos = in.readVLong();
+        scanNanos = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(queries);
+        out.writeVLong(probedLists);
+        out.writeVLong(skippedLists);
+        out.writeVLong(scoredCandidates);
+        out.writeVLong(prunedCandidates);
+        out.writeVLong(codesReadInBytes);
+        out.writeVLong(coarseNanos);
+        out.writeVLong(codeTableNanos);
+        out.writeVLong(filterNanos);
+        out.writeVLong(scanNanos);
+    }
+
+    public long getQueries() {
+        return queries;
+    }
+
+    public long getProbedLists() {
+        return probedLists;
+    }
+
+    public long getSkippedLists() {
+        return skippedLists;
+    }
+
+    public long getScoredCandidates() {
+        return scoredCandidates;
+    }
+
+    public long getPrunedCandidates() {
+        return prunedCandidates;
+    }
+
+    public long getCodesReadInBytes() {
+        return codesReadInBytes;
+    }
+
+    public long getCoarseNanos() {
+        return coarseNanos;
+    }
+
+    public long getCodeTableNanos() {
+        return codeTableNanos;
+    }
+
+    public long getFilterNanos() {
+        return filterNanos;
+    }
+
+    public long getScanNanos() {
+        return scanNanos;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("search");
+        builder.field("query_total", queries);
+        builder.field("probed_lists", probedLists);
+        builder.field("skipped_lists", skippedLists);
+        builder.field("scored_candidates", scoredCandidates);
+        builder.field("pruned_candidates", prunedCandidates);
+        builder.humanReadableField("codes_read_in_bytes", "codes_read", new ByteSizeValue(codesReadInBytes));
+        builder.humanReadableField("coarse_time_in_millis", "coarse_time", nanos(coarseNanos));
+        builder.humanReadableField("code_table_time_in_millis", "code_table_time", nanos(codeTableNanos));
+        builder.humanReadableField("filter_time_in_millis", "filter_time", nanos(filterNanos));
+        builder.humanReadableField("scan_time_in_millis", "scan_time", nanos(scanNanos));
+        return builder.endObject();
+    }
+
+    private static TimeValue nanos(long nanos) {
+        return new TimeValue(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.elasticsearch.analysis.IvfpqAnalyzer;
+import org.elasticsearch.ann.CoarseQuantizer;
+import org.elasticsearch.ann.Metric;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheLoader;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Node level cache of the probed lists and distance tables of query vectors, so that the shards
+ * of an index on the same node, repeated queries and the pages of a query compute them once.
+ * Entries are keyed by the analyzer, the query vector and either {@code nprobe} or the centroid,
+ * and evicted least recently used first once their estimated size exceeds
+ * {@code ann.code_table_cache.size}.
+ */
+public class CodeTableCache {
+
+    public static final Setting<ByteSizeValue> SIZE_SETTING =
+            Setting.memorySizeSetting("ann.code_table_cache.size", "1%", Setting.Property.NodeScope);
+
+    /**
+     * Rough size of a key and its cache entry, excluding the vector and the value.
+     */
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final Cache<Key, Object> cache;
+
+    public CodeTableCache(Settings settings) {
+        final long size = SIZE_SETTING.get(settings).getBytes();
+        if (size > 0) {
+            cache = CacheBuilder.<Key, Object>builder()
+                    .setMaximumWeight(size)
+                    .weigher(CodeTableCache::weigh)
+                    .build();
+        } else {
+            cache = null;
+        }
+    }
+
+    /**
+     * Returns the {@code nprobe} nearest coarse centroids of the vector, which must not be modified
+     * afterwards.
+     */
+    int[] getProbes(IvfpqAnalyzer analyzer, float[] features, int nprobe) {
+        final CoarseQuantizer cq = analyzer.getCoarseQuantizer();
+        if (cache == null) {
+            return cq.searchNearest(features, nprobe);
+        }
+        return (int[]) get(new Key(analyzer.getId(), features, -2 - nprobe), key -> cq.searchNearest(features, nprobe));
+    }
+
+    /**
+     * Returns the distance table of the vector for scanning the centroid's list, which must not be
+     * modified afterwards. Inner product tables don't depend on the list and are cached once.
+     */
+    float[] getCodeTable(IvfpqAnalyzer analyzer, float[] features, int centroid) {
+        if (cache == null) {
+            return analyzer.getCodeTable(centroid, features);
+        }
+        final int slot = analyzer.getMetric() == Metric.L2 ? centroid : -1;
+        return (float[]) get(new Key(analyzer.getId(), features, slot),
+                key -> analyzer.getCodeTable(centroid, features));
+    }
+
+    private Object get(Key key, CacheLoader<Key, Object> loader) {
+        try {
+            return cache.computeIfAbsent(key, loader);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("failed to compute the distance tables", e.getCause());
+        }
+    }
+
+    public CodeTableCacheStats stats() {
+        if (cache == null) {
+            return new CodeTableCacheStats(0, 0, 0, 0, 0);
+        }
+        Cache.CacheStats stats = cache.stats();
+        return new CodeTableCacheStats(stats.getHits(), stats.getMisses(), stats.getEvictions(), cache.count(),
+                cache.weight());
+    }
+
+    private static long weigh(Key key, Object value) {
+        final long valueSize = value instanceof int[] ? 4L * ((int[]) value).length : 4L * ((float[]) value).length;
+        return ENTRY_OVERHEAD + 4L * key.features.length + valueSize;
+    }
+
+    /**
+     * Identifies the probes of a vector with a {@code slot} of {@code -2 - nprobe}, the table of a
+     * centroid with its non-negative number and the table shared by all centroids with {@code -1}.
+     */
+    private static final class Key {
+
+        private final long analyzer;
+
+        private final float[] features;
+
+        private final int slot;
+
+        private final int hashCode;
+
+        Key(long analyzer, float[] features, int slot) {
+            this.analyzer = analyzer;
+            this.features = features;
+            this.slot = slot;
+            this.hashCode = 31 * (31 * Long.hashCode(analyzer) + Arrays.hashCode(features)) + slot;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return analyzer == key.analyzer && slot == key.slot && Arrays.equals(features, key.features);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
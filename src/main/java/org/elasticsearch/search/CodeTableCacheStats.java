@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+public class CodeTableCacheStats implements Writeable, ToXContentFragment {
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long evictions;
+
+    private final long count;
+
+    private final long memorySizeInBytes;
+
+    public CodeTableCacheStats(long hits, long misses, long evictions, long count, long memorySizeInBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.count = count;
+        this.memorySizeInBytes = memorySizeInBytes;
+    }
+
+    public CodeTableCacheStats(StreamInput in) throws IOException {
+        hits = in.readVLong();
+        misses = in.readVLong();
+        evictions = in.readVLong();
+        count = in.readVLong();
+        memorySizeInBytes = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(hits);
+        out.writeVLong(misses);
+        out.writeVLong(evictions);
+        out.writeVLong(count);
+        out.writeVLong(memorySizeInBytes);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMemorySizeInBytes() {
+        return memorySizeInBytes;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("code_table_cache");
+        builder.humanReadableField("memory_size_in_bytes", "memory_size", new ByteSizeValue(memorySizeInBytes));
+        builder.field("count", count);
+        builder.field("hit_count", hits);
+        builder.field("miss_count", misses);
+        builder.field("evictions", evictions);
+        return builder.endObject();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+/**
+ * Bounded max-heap keeping the {@code capacity} smallest distances seen so far. The root is the
+ * worst retained hit, so a candidate is rejected with a single comparison once the heap is full.
+ */
+final class DistanceQueue {
+
+    private final int capacity;
+
+    private final int[] docs;
+
+    private final float[] distances;
+
+    private int size;
+
+    DistanceQueue(int capacity) {
+        this.capacity = capacity;
+        this.docs = new int[capacity];
+        this.distances = new float[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Returns the largest retained distance, or {@link Float#POSITIVE_INFINITY} until the queue
+     * is full.
+     */
+    float threshold() {
+        return isFull() ? distances[0] : Float.POSITIVE_INFINITY;
+    }
+
+    boolean insert(int doc, float distance) {
+        if (size < capacity) {
+            docs[size] = doc;
+            distances[size] = distance;
+            upHeap(size++);
+            return true;
+        }
+        if (capacity == 0 || !worse(docs[0], distances[0], doc, distance)) {
+            return false;
+        }
+        docs[0] = doc;
+        distances[0] = distance;
+        downHeap(0);
+        return true;
+    }
+
+    int doc(int i) {
+        return docs[i];
+    }
+
+    float distance(int i) {
+        return distances[i];
+    }
+
+    private static boolean worse(int doc1, float distance1, int doc2, float distance2) {
+        return distance1 > distance2 || (distance1 == distance2 && doc1 > doc2);
+    }
+
+    private void upHeap(int i) {
+        final int doc = docs[i];
+        final float distance = distances[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(doc, distance, docs[parent], distances[parent])) {
+                break;
+            }
+            docs[i] = docs[parent];
+            distances[i] = distances[parent];
+            i = parent;
+        }
+        docs[i] = doc;
+        distances[i] = distance;
+    }
+
+    private void downHeap(int i) {
+        final int doc = docs[i];
+        final float distance = distances[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(docs[child + 1], distances[child + 1], docs[child], distances[child])) {
+                child++;
+            }
+            if (!worse(docs[child], distances[child], doc, distance)) {
+                break;
+            }
+            docs[i] = docs[child];
+            distances[i] = distances[child];
+            i = child;
+        }
+        docs[i] = doc;
+        distances[i] = distance;
+    }
+}
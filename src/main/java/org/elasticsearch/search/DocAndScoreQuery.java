@@ -0,0 +1,254 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queries.function.FunctionScoreQuery;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.DoubleValues;
+import org.apache.lucene.search.DoubleValuesSource;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Matches a precomputed set of top-level doc ids. Together with {@link Scores} it is the rewritten
+ * form of {@link IvfpqKnnQuery}: the inverted lists are scanned once during rewrite and the
+ * search itself only replays the collected hits.
+ * <p>
+ * Doc ids are only meaningful in the top level reader the query was rewritten against, so the
+ * cache key of that reader is part of the query's identity, and the query may only be cached per
+ * segment when the reader has one.
+ */
+final class DocAndScoreQuery extends Query {
+
+    private final int[] docs;
+
+    private final float[] scores;
+
+    private final Object readerKey;
+
+    /**
+     * What the query was rewritten from, only part of {@link #toString(String)}.
+     */
+    private final String description;
+
+    private DocAndScoreQuery(int[] docs, float[] scores, Object readerKey, String description) {
+        this.docs = docs;
+        this.scores = scores;
+        this.readerKey = readerKey;
+        this.description = description;
+    }
+
+    /**
+     * Creates a query returning {@code scores[i]} for {@code docs[i]} of the reader, which shows
+     * the description in its string form, and so in the profile of a search. The arrays are sorted
+     * by doc id in place.
+     */
+    static Query create(int[] docs, float[] scores, IndexReader reader, String description) {
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                return Integer.compare(docs[i], docs[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                int doc = docs[i];
+                docs[i] = docs[j];
+                docs[j] = doc;
+                float score = scores[i];
+                scores[i] = scores[j];
+                scores[j] = score;
+            }
+        }.sort(0, docs.length);
+        final IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        final Object readerKey = cacheHelper == null ? null : cacheHelper.getKey();
+        return new FunctionScoreQuery(new DocAndScoreQuery(docs, scores, readerKey, description),
+                new Scores(docs, scores));
+    }
+
+    private static int lowerBound(int[] docs, int doc) {
+        int index = Arrays.binarySearch(docs, doc);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) {
+        return new ConstantScoreWeight(this, boost) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) {
+                final int docBase = context.docBase;
+                final int maxDoc = context.reader().maxDoc();
+                final int from = lowerBound(docs, docBase);
+                final int to = lowerBound(docs, docBase + maxDoc);
+                if (from == to) {
+                    return null;
+                }
+                return new ConstantScoreScorer(this, score(), new DocIdSetIterator() {
+
+                    private int index = from - 1;
+
+                    private int doc = -1;
+
+                    @Override
+                    public int docID() {
+                        return doc;
+                    }
+
+                    @Override
+                    public int nextDoc() {
+                        if (++index >= to) {
+                            return doc = NO_MORE_DOCS;
+                        }
+                        return doc = docs[index] - docBase;
+                    }
+
+                    @Override
+                    public int advance(int target) {
+                        if (target >= maxDoc) {
+                            // NO_MORE_DOCS + docBase would overflow
+                            index = to;
+                            return doc = NO_MORE_DOCS;
+                        }
+                        index = lowerBound(docs, target + docBase) - 1;
+                        if (index < from - 1) {
+                            index = from - 1;
+                        }
+                        return nextDoc();
+                    }
+
+                    @Override
+                    public long cost() {
+                        return to - from;
+                    }
+                });
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                // doc ids are relative to the reader the query was rewritten against
+                return readerKey != null;
+            }
+        };
+    }
+
+    @Override
+    public String toString(String field) {
+        return "DocAndScoreQuery[" + docs.length + " docs" + (description == null ? "" : "," + description) + "]";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!sameClassAs(o)) {
+            return false;
+        }
+        DocAndScoreQuery that = (DocAndScoreQuery) o;
+        return readerKey == that.readerKey && Arrays.equals(docs, that.docs) && Arrays.equals(scores, that.scores);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = classHash();
+        result = 31 * result + Objects.hashCode(readerKey);
+        result = 31 * result + Arrays.hashCode(docs);
+        return 31 * result + Arrays.hashCode(scores);
+    }
+
+    private static final class Scores extends DoubleValuesSource {
+
+        private final int[] docs;
+
+        private final float[] scores;
+
+        Scores(int[] docs, float[] scores) {
+            this.docs = docs;
+            this.scores = scores;
+        }
+
+        @Override
+        public DoubleValues getValues(LeafReaderContext leafReaderContext, DoubleValues values) {
+            final int docBase = leafReaderContext.docBase;
+            final int from = lowerBound(docs, docBase);
+            final int to = lowerBound(docs, docBase + leafReaderContext.reader().maxDoc());
+            return new DoubleValues() {
+
+                private int index = from;
+
+                @Override
+                public double doubleValue() {
+                    return scores[index];
+                }
+
+                @Override
+                public boolean advanceExact(int doc) {
+                    final int target = doc + docBase;
+                    while (index < to && docs[index] < target) {
+                        index++;
+                    }
+                    return index < to && docs[index] == target;
+                }
+            };
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+
+        @Override
+        public DoubleValuesSource rewrite(IndexSearcher reader) {
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Scores that = (Scores) o;
+            return Arrays.equals(docs, that.docs) && Arrays.equals(scores, that.scores);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(docs) + Arrays.hashCode(scores);
+        }
+
+        @Override
+        public String toString() {
+            return "scores(" + docs.length + " docs)";
+        }
+
+        /**
+         * The values only depend on the doc ids, and the query they score is only cacheable
+         * within the reader they are relative to.
+         */
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.analysis.IvfpqAnalyzer;
+import org.elasticsearch.ann.AlgebraicOps;
+import org.elasticsearch.ann.CoarseQuantizer;
+import org.elasticsearch.ann.Metric;
+import org.elasticsearch.ann.ProductQuantizer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Searches the {@code k} nearest documents of many vectors at once. The probes of all vectors
+ * are selected together, see {@link CoarseQuantizer#searchNearest(float[], int, int)}, and the
+ * (list, vector) pairs are grouped by inverted list, so that every probed list is read once for
+ * all the vectors probing it instead of once per vector.
+ * <p>
+ * Like {@link IvfpqKnnQuery}, a vector whose queue is full skips a list when the lower bound of its
+ * distances in the list is larger than the worst distance in the queue, and gives up the sum of a
+ * document's distance once it is bound to exceed it.
+ */
+public final class IvfpqBatchSearch {
+
+    /**
+     * Vectors whose distance tables are kept at once while scanning a list, which bounds the L2
+     * tables to {@code BLOCK_SIZE * m * ksub} floats. Inner product tables are the same for every
+     * list, so one is kept per vector instead.
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    private IvfpqBatchSearch() {
+    }
+
+    /**
+     * Returns the nearest documents of each of the {@code n} vectors stored one after the other in
+     * {@code vectors}, nearest first, with their approximate distances.
+     */
+    public static Hits[] search(IndexReader reader, String field, IvfpqAnalyzer analyzer, float[] vectors, int n,
+                                int nprobe, int k) throws IOException {
+        final CoarseQuantizer cq = analyzer.getCoarseQuantizer();
+        final ProductQuantizer pq = analyzer.getProductQuantizer();
+        final int d = cq.getDimension();
+        if (analyzer.getMetric().normalizes()) {
+            vectors = Arrays.copyOf(vectors, n * d);
+            AlgebraicOps.normalize(vectors, n, d);
+        }
+        vectors = analyzer.rotate(vectors, n);
+        int[][] probes = cq.searchNearest(vectors, n, nprobe);
+        int total = 0;
+        for (int[] vectorProbes : probes) {
+            total += vectorProbes.length;
+        }
+        // centroid in the high and vector in the low word, so that sorting groups the vectors by list
+        long[] pairs = new long[total];
+        for (int i = 0, p = 0; i < n; ++i) {
+            for (int centroid : probes[i]) {
+                pairs[p++] = ((long) centroid << 32) | i;
+            }
+        }
+        Arrays.sort(pairs);
+
+        DistanceQueue[] queues = new DistanceQueue[n];
+        for (int i = 0; i < n; ++i) {
+            queues[i] = new DistanceQueue(k);
+        }
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafScan[] scans = new LeafScan[leaves.size()];
+        for (int i = 0; i < scans.length; ++i) {
+            scans[i] = LeafScan.create(leaves.get(i), field);
+        }
+
+        float[] feature = new float[d];
+        // inner product tables don't depend on the list, so each vector's table is built only once
+        final boolean shared = analyzer.getMetric() != Metric.L2;
+        float[][] vectorTables = null;
+        int[][] vectorOrders = null;
+        float[][] vectorBounds = null;
+        if (shared) {
+            vectorTables = new float[n][];
+            vectorOrders = new int[n][];
+            vectorBounds = new float[n][];
+            for (int i = 0; i < n; ++i) {
+                if (probes[i].length == 0) {
+                    continue;
+                }
+                System.arraycopy(vectors, i * d, feature, 0, d);
+                vectorTables[i] = new float[pq.getCodeTableSize()];
+                vectorOrders[i] = new int[pq.getM()];
+                vectorBounds[i] = new float[pq.getM() + 1];
+                pq.getInnerProductTable(feature, vectorTables[i]);
+                pq.getSumOrder(vectorTables[i], vectorOrders[i]);
+                pq.getLowerBounds(vectorTables[i], vectorOrders[i], vectorBounds[i]);
+            }
+        }
+        int[] block = new int[BLOCK_SIZE];
+        float[][] tables = new float[BLOCK_SIZE][];
+        float[] biases = new float[BLOCK_SIZE];
+        int[][] orders = new int[BLOCK_SIZE][];
+        float[][] bounds = new float[BLOCK_SIZE][];
+        for (int start = 0; start < total; ) {
+            final int centroid = (int) (pairs[start] >>> 32);
+            int size = 0;
+            for (; start < total && size < BLOCK_SIZE && (int) (pairs[start] >>> 32) == centroid; ++start) {
+                final int vector = (int) pairs[start];
+                System.arraycopy(vectors, vector * d, feature, 0, d);
+                if (shared) {
+                    tables[size] = vectorTables[vector];
+                    orders[size] = vectorOrders[vector];
+                    bounds[size] = vectorBounds[vector];
+                } else {
+                    if (tables[size] == null) {
+                        tables[size] = new float[pq.getCodeTableSize()];
+                        orders[size] = new int[pq.getM()];
+                        bounds[size] = new float[pq.getM() + 1];
+                    }
+                    analyzer.getCodeTable(centroid, feature, tables[size]);
+                    pq.getSumOrder(tables[size], orders[size]);
+                    pq.getLowerBounds(tables[size], orders[size], bounds[size]);
+                }
+                biases[size] = analyzer.getBias(centroid, feature);
+                if (biases[size] + bounds[size][0] <= queues[vector].threshold()) {
+                    block[size++] = vector;
+                }
+            }
+            if (size == 0) {
+                continue;
+            }
+            BytesRef term = new BytesRef(Integer.toString(centroid));
+            for (LeafScan scan : scans) {
+                if (scan != null) {
+                    scan.scan(term, pq, block, tables, biases, orders, bounds, size, queues);
+                }
+            }
+        }
+
+        Hits[] hits = new Hits[n];
+        for (int i = 0; i < n; ++i) {
+            hits[i] = new Hits(queues[i]);
+        }
+        return hits;
+    }
+
+    /**
+     * The nearest documents of one vector, as doc ids of the searched reader.
+     */
+    public static final class Hits {
+
+        private final int[] docs;
+
+        private final float[] distances;
+
+        Hits(DistanceQueue queue) {
+            final int size = queue.size();
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; ++i) {
+                order[i] = i;
+            }
+            // the queue is a heap, order it by distance then doc
+            Arrays.sort(order, (a, b) -> {
+                final int cmp = Float.compare(queue.distance(a), queue.distance(b));
+                return cmp != 0 ? cmp : Integer.compare(queue.doc(a), queue.doc(b));
+            });
+            docs = new int[size];
+            distances = new float[size];
+            for (int i = 0; i < size; ++i) {
+                docs[i] = queue.doc(order[i]);
+                distances[i] = queue.distance(order[i]);
+            }
+        }
+
+        public int size() {
+            return docs.length;
+        }
+
+        public int doc(int i) {
+            return docs[i];
+        }
+
+        public float distance(int i) {
+            return distances[i];
+        }
+    }
+
+    /**
+     * Reads the inverted lists of one segment, keeping its terms and postings enums across lists.
+     */
+    private static final class LeafScan {
+
+        private final int docBase;
+
+        private final ListReader listReader;
+
+        private LeafScan(int docBase, ListReader listReader) {
+            this.docBase = docBase;
+            this.listReader = listReader;
+        }
+
+        static LeafScan create(LeafReaderContext context, String field) throws IOException {
+            LeafReader reader = context.reader();
+            ListReader listReader = ListReader.create(reader, field, reader.getLiveDocs());
+            return listReader == null ? null : new LeafScan(context.docBase, listReader);
+        }
+
+        /**
+         * Reads the codes of every document of the list once and offers the document to the
+         * queue of each of the {@code size} vectors of the block.
+         */
+        void scan(BytesRef term, ProductQuantizer pq, int[] block, float[][] tables, float[] biases, int[][] orders,
+                  float[][] bounds, int size, DistanceQueue[] queues) throws IOException {
+            if (!listReader.seek(term)) {
+                return;
+            }
+            for (int doc = listReader.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = listReader.nextDoc()) {
+                final BytesRef codes = listReader.codes();
+                for (int i = 0; i < size; ++i) {
+                    final DistanceQueue queue = queues[block[i]];
+                    final float threshold = queue.threshold() - biases[i];
+                    final float distance = pq.getDistance(tables[i], codes.bytes, codes.offset, codes.length,
+                            orders[i], bounds[i], threshold);
+                    if (distance <= threshold) {
+                        queue.insert(docBase + doc, biases[i] + distance);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.analysis.IvfpqAnalyzer;
+import org.elasticsearch.ann.ArrayUtils;
+import org.elasticsearch.ann.ProductQuantizer;
+import org.elasticsearch.mapper.IvfpqFieldMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+
+/**
+ * Scans the probed inverted lists of a field and keeps the {@code k} nearest documents of every
+ * segment in a bounded heap. The query only exists until rewrite, which replaces it with a
+ * {@link DocAndScoreQuery} over the global top {@code k}, so the search phase neither builds a
+ * scorer per probed list nor scores more than {@code k} documents.
+ * <p>
+ * With {@code rerank > 0} the scan keeps the {@code rerank} nearest documents by approximate
+ * distance instead, and those are re-ranked with the exact distance to the original vectors
+ * kept in doc values by {@code store_vector}.
+ * <p>
+ * Inner product tables are shared by all lists, so the distance of a document is the one looked
+ * up in the table plus the list's bias, the negated inner product of the query and the centroid.
+ * <p>
+ * A filter is turned into a bitset per segment before the scan, and documents outside of it are
+ * skipped before their codes are read. When fewer than {@code k} filtered documents are found in
+ * the probed lists, the next nearest lists are probed too, doubling {@code nprobe} each round up to
+ * {@code maxNprobe}.
+ * <p>
+ * With a positive {@code minCandidates}, the probes given are the least to scan, and the next
+ * nearest lists, up to {@code maxNprobe} in all, are added until the probed lists hold that many
+ * documents of the shard according to their document frequencies. Queries near dense regions of
+ * the index thus probe fewer lists than those near sparse ones or between clusters.
+ * <p>
+ * With a {@link ParallelScan} allowing more than one task, every round is split into tasks of one
+ * segment and a contiguous range of its probed lists, each with its own heap, which are merged
+ * into the segment's heap once all tasks are done.
+ * <p>
+ * The work done by the query, from the coarse search to the scan, is added to the node's
+ * {@link AnnSearchMetrics} when given, and described by the rewritten query.
+ * <p>
+ * The identity of the query is its field, analyzer, vector, probed lists and parameters; the
+ * distance tables and biases follow from them and are left out. With a {@link ResultCache}, the
+ * nearest documents found in a reader are cached and reused by equal queries on the same reader.
+ */
+final class IvfpqKnnQuery extends Query {
+
+    private final String field;
+
+    private final float[] features;
+
+    /**
+     * The query in the space of the quantizers, {@code features} itself unless the analyzer rotates
+     * vectors. Re-ranking compares the original vectors with {@code features}.
+     */
+    private final float[] rotated;
+
+    private final IvfpqAnalyzer analyzer;
+
+    private final CodeTableCache cache;
+
+    private final ParallelScan scan;
+
+    private final AnnSearchMetrics metrics;
+
+    private final ResultCache resultCache;
+
+    /**
+     * The time spent on the coarse search and the distance tables before the query was built.
+     */
+    private final QueryBreakdown breakdown;
+
+    private final int[] probes;
+
+    private final float[][] codeTables;
+
+    private final float[] biases;
+
+    private final int k;
+
+    private final int rerank;
+
+    private final ScoreMode scoreMode;
+
+    private final Query filter;
+
+    private final int maxNprobe;
+
+    private final int minCandidates;
+
+    IvfpqKnnQuery(String field, float[] features, float[] rotated, IvfpqAnalyzer analyzer, CodeTableCache cache,
+                  ParallelScan scan, AnnSearchMetrics metrics, ResultCache resultCache, QueryBreakdown breakdown,
+                  int[] probes, float[][] codeTables, float[] biases, int k, int rerank, ScoreMode scoreMode,
+                  Query filter, int maxNprobe, int minCandidates) {
+        this.field = field;
+        this.features = features;
+        this.rotated = rotated;
+        this.analyzer = analyzer;
+        this.cache = cache;
+        this.scan = scan;
+        this.metrics = metrics;
+        this.resultCache = resultCache;
+        this.breakdown = breakdown;
+        this.probes = probes;
+        this.codeTables = codeTables;
+        this.biases = biases;
+        this.k = k;
+        this.rerank = rerank;
+        this.scoreMode = scoreMode;
+        this.filter = filter;
+        this.maxNprobe = maxNprobe;
+        this.minCandidates = minCandidates;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        final ResultCache.Key cacheKey = resultCache == null ? null : resultCache.key(reader, field,
+                analyzer.getId(), features, probes, k, rerank, scoreMode, filter, maxNprobe, minCandidates);
+        if (cacheKey != null) {
+            ResultCache.Result cached = resultCache.get(cacheKey);
+            if (cached != null) {
+                return DocAndScoreQuery.create(cached.docs.clone(), cached.scores.clone(), reader, "ivfpq[cached]");
+            }
+        }
+        final QueryBreakdown breakdown = this.breakdown.copy();
+        List<LeafReaderContext> leaves = reader.leaves();
+        Bits[] filterBits = null;
+        long filtered = 0;
+        if (filter != null) {
+            final long start = System.nanoTime();
+            filterBits = new Bits[leaves.size()];
+            filtered = filterBits(reader, filterBits);
+            breakdown.filterNanos += System.nanoTime() - start;
+        }
+        DistanceQueue[] queues = new DistanceQueue[leaves.size()];
+        for (int i = 0; i < queues.length; ++i) {
+            queues[i] = new DistanceQueue(Math.max(k, rerank));
+        }
+        long start = System.nanoTime();
+        ProbedLists lists = new ProbedLists(probes, codeTables, biases);
+        breakdown.codeTableNanos += System.nanoTime() - start;
+        if (minCandidates > 0 && probes.length < maxNprobe) {
+            start = System.nanoTime();
+            int[] nearest = IvfpqQuery.searchProbes(analyzer, rotated, maxNprobe, cache);
+            final int nprobe = adaptiveNprobe(leaves, nearest);
+            breakdown.coarseNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            lists.append(Arrays.copyOf(nearest, nprobe));
+            breakdown.codeTableNanos += System.nanoTime() - start;
+        }
+        long scored = searchLeaves(leaves, filterBits, queues, lists, 0, breakdown);
+        int nprobe = lists.size();
+        // the filter left too few documents in the probed lists, probe the next nearest ones
+        while (filterBits != null && scored < Math.min(k, filtered) && nprobe < maxNprobe) {
+            nprobe = (int) Math.min(maxNprobe, 2L * nprobe);
+            start = System.nanoTime();
+            int[] expanded = IvfpqQuery.searchProbes(analyzer, rotated, nprobe, cache);
+            breakdown.coarseNanos += System.nanoTime() - start;
+            int from = lists.size();
+            start = System.nanoTime();
+            boolean appended = lists.append(expanded);
+            breakdown.codeTableNanos += System.nanoTime() - start;
+            if (!appended) {
+                break;
+            }
+            scored += searchLeaves(leaves, filterBits, queues, lists, from, breakdown);
+        }
+
+        DistanceQueue topK = new DistanceQueue(k);
+        for (int i = 0; i < queues.length; ++i) {
+            LeafReaderContext context = leaves.get(i);
+            DistanceQueue leafTopK = rerank > 0 ? rerankLeaf(context.reader(), queues[i]) : queues[i];
+            for (int j = 0; j < leafTopK.size(); ++j) {
+                topK.insert(context.docBase + leafTopK.doc(j), leafTopK.distance(j));
+            }
+        }
+        int[] docs = new int[topK.size()];
+        float[] scores = new float[topK.size()];
+        for (int i = 0; i < docs.length; ++i) {
+            docs[i] = topK.doc(i);
+            scores[i] = scoreMode.score(topK.distance(i));
+        }
+        breakdown.probedLists = lists.size();
+        if (metrics != null) {
+            metrics.add(breakdown);
+        }
+        Query query = DocAndScoreQuery.create(docs, scores, reader, breakdown.toString());
+        if (cacheKey != null) {
+            resultCache.put(cacheKey, docs, scores);
+        }
+        return query;
+    }
+
+    /**
+     * Returns how many of the nearest lists, at least as many as the probes given, hold
+     * {@code minCandidates} documents of the shard, or all of them if they hold fewer.
+     */
+    private int adaptiveNprobe(List<LeafReaderContext> leaves, int[] nearest) throws IOException {
+        List<TermsEnum> termsEnums = new ArrayList<>(leaves.size());
+        for (LeafReaderContext context : leaves) {
+            Terms terms = context.reader().terms(field);
+            if (terms != null) {
+                termsEnums.add(terms.iterator());
+            }
+        }
+        long candidates = 0;
+        for (int i = 0; i < nearest.length; ++i) {
+            if (candidates >= minCandidates && i >= probes.length) {
+                return i;
+            }
+            BytesRef term = new BytesRef(String.valueOf(nearest[i]));
+            for (TermsEnum termsEnum : termsEnums) {
+                if (termsEnum.seekExact(term)) {
+                    candidates += termsEnum.docFreq();
+                }
+            }
+        }
+        return nearest.length;
+    }
+
+    /**
+     * Fills {@code bits} with the live documents of each segment that match the filter, leaving
+     * {@code null} for segments without any, and returns their total number.
+     */
+    private long filterBits(IndexReader reader, Bits[] bits) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        Weight weight = searcher.createWeight(searcher.rewrite(filter), false, 1f);
+        List<LeafReaderContext> leaves = reader.leaves();
+        long count = 0;
+        for (int i = 0; i < bits.length; ++i) {
+            LeafReaderContext context = leaves.get(i);
+            Scorer scorer = weight.scorer(context);
+            if (scorer == null) {
+                continue;
+            }
+            Bits liveDocs = context.reader().getLiveDocs();
+            FixedBitSet leafBits = new FixedBitSet(context.reader().maxDoc());
+            int leafCount = 0;
+            DocIdSetIterator iterator = scorer.iterator();
+            for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    leafBits.set(doc);
+                    leafCount++;
+                }
+            }
+            if (leafCount > 0) {
+                bits[i] = leafBits;
+                count += leafCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The probed lists with their distance tables and biases, and the order in which the entries of
+     * each table are summed with the lower bounds of those sums, see
+     * {@link ProductQuantizer#getDistance(float[], byte[], int, int, int[], float[], float)}.
+     */
+    private final class ProbedLists {
+
+        private int[] probes;
+
+        private float[][] codeTables;
+
+        private float[] biases;
+
+        private int[][] orders;
+
+        private float[][] bounds;
+
+        ProbedLists(int[] probes, float[][] codeTables, float[] biases) {
+            this.probes = probes;
+            this.codeTables = codeTables;
+            this.biases = biases;
+            this.orders = new int[probes.length][];
+            this.bounds = new float[probes.length][];
+            bound(0);
+        }
+
+        int size() {
+            return probes.length;
+        }
+
+        /**
+         * Appends the lists of {@code expanded} that are not probed yet, returning whether there
+         * were any.
+         */
+        boolean append(int[] expanded) {
+            final int from = probes.length;
+            probes = appendNew(probes, expanded);
+            if (probes.length == from) {
+                return false;
+            }
+            codeTables = Arrays.copyOf(codeTables, probes.length);
+            biases = biases == null ? null : Arrays.copyOf(biases, probes.length);
+            for (int i = from; i < probes.length; ++i) {
+                codeTables[i] = IvfpqQuery.getCodeTable(analyzer, rotated, probes[i], cache);
+                if (biases != null) {
+                    biases[i] = analyzer.getBias(probes[i], rotated);
+                }
+            }
+            orders = Arrays.copyOf(orders, probes.length);
+            bounds = Arrays.copyOf(bounds, probes.length);
+            bound(from);
+            return true;
+        }
+
+        /**
+         * Computes the orders and bounds of the tables from {@code from} on, once for a table
+         * shared by consecutive lists such as the inner product table.
+         */
+        private void bound(int from) {
+            final ProductQuantizer pq = analyzer.getProductQuantizer();
+            for (int i = from; i < probes.length; ++i) {
+                if (i > 0 && codeTables[i] == codeTables[i - 1]) {
+                    orders[i] = orders[i - 1];
+                    bounds[i] = bounds[i - 1];
+                    continue;
+                }
+                orders[i] = new int[pq.getM()];
+                pq.getSumOrder(codeTables[i], orders[i]);
+                bounds[i] = new float[pq.getM() + 1];
+                pq.getLowerBounds(codeTables[i], orders[i], bounds[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the probes followed by those of {@code expanded} that are not among them yet.
+     */
+    private static int[] appendNew(int[] probes, int[] expanded) {
+        int[] sorted = probes.clone();
+        Arrays.sort(sorted);
+        int[] result = Arrays.copyOf(probes, probes.length + expanded.length);
+        int size = probes.length;
+        for (int centroid : expanded) {
+            if (Arrays.binarySearch(sorted, centroid) < 0) {
+                result[size++] = centroid;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Scans the lists {@code probes[from:]} of all segments into their queues, adds the work done to
+     * the breakdown and returns the number of documents scored.
+     */
+    private long searchLeaves(List<LeafReaderContext> leaves, Bits[] filterBits, DistanceQueue[] queues,
+                              ProbedLists lists, int from, QueryBreakdown breakdown) throws IOException {
+        final long start = System.nanoTime();
+        final int parallelism = scan == null ? 1 : scan.parallelism();
+        List<ScanTask> tasks = new ArrayList<>();
+        if (parallelism == 1) {
+            for (int i = 0; i < queues.length; ++i) {
+                if (filterBits == null || filterBits[i] != null) {
+                    tasks.add(new ScanTask(leaves.get(i), filterBits == null ? null : filterBits[i], queues[i], lists,
+                            from, lists.size()));
+                }
+            }
+            for (ScanTask task : tasks) {
+                task.scan();
+            }
+        } else {
+            long totalDocs = 0;
+            for (int i = 0; i < queues.length; ++i) {
+                if (filterBits == null || filterBits[i] != null) {
+                    totalDocs += leaves.get(i).reader().maxDoc();
+                }
+            }
+            // larger segments get more chunks of lists, so that the tasks take about the same time
+            final int count = lists.size() - from;
+            for (int i = 0; i < queues.length; ++i) {
+                if (filterBits != null && filterBits[i] == null) {
+                    continue;
+                }
+                final long leafDocs = leaves.get(i).reader().maxDoc();
+                final int chunks = (int) Math.max(1, Math.min(count, parallelism * leafDocs / Math.max(1, totalDocs)));
+                for (int c = 0; c < chunks; ++c) {
+                    DistanceQueue queue = chunks == 1 ? queues[i] : new DistanceQueue(Math.max(k, rerank));
+                    tasks.add(new ScanTask(leaves.get(i), filterBits == null ? null : filterBits[i], queue, lists,
+                            from + c * count / chunks, from + (c + 1) * count / chunks));
+                }
+            }
+            if (!tasks.isEmpty()) {
+                scan.run(tasks);
+            }
+        }
+        long scored = 0;
+        for (ScanTask task : tasks) {
+            scored += task.scored;
+            breakdown.codesReadInBytes += task.codesRead;
+            breakdown.skippedLists += task.skippedLists;
+            breakdown.prunedCandidates += task.prunedCandidates;
+            DistanceQueue queue = queues[task.context.ord];
+            if (task.queue != queue) {
+                for (int j = 0; j < task.queue.size(); ++j) {
+                    queue.insert(task.queue.doc(j), task.queue.distance(j));
+                }
+            }
+        }
+        breakdown.scoredCandidates += scored;
+        breakdown.scanNanos += System.nanoTime() - start;
+        return scored;
+    }
+
+    /**
+     * Scans a range of the probed lists of one segment into its own heap.
+     */
+    private final class ScanTask implements Callable<Void> {
+
+        private final LeafReaderContext context;
+
+        private final Bits filterBits;
+
+        private final DistanceQueue queue;
+
+        private final ProbedLists lists;
+
+        private final int from;
+
+        private final int to;
+
+        private long scored;
+
+        private long codesRead;
+
+        private long skippedLists;
+
+        private long prunedCandidates;
+
+        ScanTask(LeafReaderContext context, Bits filterBits, DistanceQueue queue, ProbedLists lists, int from,
+                 int to) {
+            this.context = context;
+            this.filterBits = filterBits;
+            this.queue = queue;
+            this.lists = lists;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            scan();
+            return null;
+        }
+
+        /**
+         * Scans the lists {@code probes[from:to]} of the segment into the queue, counting the
+         * documents scored and the bytes of their codes. Documents outside of {@code filterBits},
+         * which only holds live documents, are skipped before their codes are read.
+         * <p>
+         * Once the queue is full, a list is skipped when even the lower bound of its distances is
+         * larger than the worst distance in the queue, and the sum of a document's distance is
+         * given up once it is bound to exceed it.
+         */
+        void scan() throws IOException {
+            LeafReader reader = context.reader();
+            Bits acceptDocs = filterBits != null ? filterBits : reader.getLiveDocs();
+            ListReader listReader = ListReader.create(reader, field, acceptDocs);
+            if (listReader == null) {
+                return;
+            }
+            final ProductQuantizer pq = analyzer.getProductQuantizer();
+            final int[] probes = lists.probes;
+            final float[] biases = lists.biases;
+            for (int i = from; i < to; ++i) {
+                final float bias = biases == null ? 0 : biases[i];
+                final float[] bounds = lists.bounds[i];
+                if (bias + bounds[0] > queue.threshold()) {
+                    skippedLists++;
+                    continue;
+                }
+                if (!listReader.seek(new BytesRef(String.valueOf(probes[i])))) {
+                    continue;
+                }
+                final float[] codeTable = lists.codeTables[i];
+                final int[] order = lists.orders[i];
+                for (int doc = listReader.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = listReader.nextDoc()) {
+                    final BytesRef codes = listReader.codes();
+                    scored++;
+                    codesRead += codes.length;
+                    final float threshold = queue.threshold() - bias;
+                    final float distance = pq.getDistance(codeTable, codes.bytes, codes.offset, codes.length, order,
+                            bounds, threshold);
+                    if (distance > threshold) {
+                        prunedCandidates++;
+                        continue;
+                    }
+                    queue.insert(doc, bias + distance);
+                }
+            }
+        }
+    }
+
+    private DistanceQueue rerankLeaf(LeafReader reader, DistanceQueue candidates) throws IOException {
+        DistanceQueue queue = new DistanceQueue(k);
+        BinaryDocValues vectors = reader.getBinaryDocValues(IvfpqFieldMapper.getVectorField(field));
+        if (vectors == null) {
+            for (int i = 0; i < candidates.size(); ++i) {
+                queue.insert(candidates.doc(i), candidates.distance(i));
+            }
+            return queue;
+        }
+        // doc values are read in doc id order
+        long[] sorted = new long[candidates.size()];
+        for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = ((long) candidates.doc(i) << 32) | (Float.floatToIntBits(candidates.distance(i)) & 0xffffffffL);
+        }
+        Arrays.sort(sorted);
+        float[] vector = new float[features.length];
+        for (long encoded : sorted) {
+            final int doc = (int) (encoded >>> 32);
+            float distance = Float.intBitsToFloat((int) encoded);
+            if (vectors.advanceExact(doc)) {
+                BytesRef bytes = vectors.binaryValue();
+                if (bytes.length == vector.length * 4) {
+                    ArrayUtils.decodeFloatArray(bytes.bytes, bytes.offset, bytes.length, vector);
+                    distance = analyzer.getMetric().distance(features, 0, vector, 0, vector.length);
+                }
+            }
+            queue.insert(doc, distance);
+        }
+        return queue;
+    }
+
+    @Override
+    public String toString(String field) {
+        return "IvfpqKnnQuery[field=" + this.field + ",nprobe=" + probes.length + ",k=" + k
+                + ",rerank=" + rerank + ",metric=" + analyzer.getMetric() + ",score_mode=" + scoreMode
+                + (filter == null ? "" : ",filter=" + filter.toString(field))
+                + (filter == null && minCandidates == 0 ? "" : ",max_nprobe=" + maxNprobe)
+                + (minCandidates == 0 ? "" : ",min_candidates=" + minCandidates) + "]";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!sameClassAs(o)) {
+            return false;
+        }
+        IvfpqKnnQuery that = (IvfpqKnnQuery) o;
+        return k == that.k
+                && rerank == that.rerank
+                && scoreMode == that.scoreMode
+                && maxNprobe == that.maxNprobe
+                && minCandidates == that.minCandidates
+                && field.equals(that.field)
+                && analyzer.getId() == that.analyzer.getId()
+                && Objects.equals(filter, that.filter)
+                && Arrays.equals(features, that.features)
+                && Arrays.equals(probes, that.probes);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = classHash();
+        result = 31 * result + field.hashCode();
+        result = 31 * result + Long.hashCode(analyzer.getId());
+        result = 31 * result + Arrays.hashCode(features);
+        result = 31 * result + Arrays.hashCode(probes);
+        result = 31 * result + Objects.hashCode(filter);
+        result = 31 * result + maxNprobe;
+        result = 31 * result + minCandidates;
+        result = 31 * result + scoreMode.hashCode();
+        result = 31 * result + rerank;
+        return 31 * result + k;
+    }
+}
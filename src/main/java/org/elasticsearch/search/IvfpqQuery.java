@@ -16,34 +16,19 @@ package org.elasticsearch.search;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.LeafReaderContext;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.queries.function.FunctionScoreQuery;
+import org.apache.lucene.search.BoostQuery;
 import org.apache.lucene.search.DisjunctionMaxQuery;
-import org.apache.lucene.search.DoubleValues;
-import org.apache.lucene.search.DoubleValuesSource;
-import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.analysis.IvfpqAnalyzer;
-import org.elasticsearch.ann.ArrayUtils;
-import org.elasticsearch.ann.ExactSearch;
-import org.elasticsearch.ann.ProductQuantizer;
+import org.elasticsearch.ann.Metric;
 import org.elasticsearch.index.analysis.NamedAnalyzer;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.QueryShardContext;
-import org.elasticsearch.mapper.IvfpqFieldMapper;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 
 class IvfpqQuery {
 
@@ -51,14 +36,28 @@ class IvfpqQuery {
 
     private QueryShardContext context;
 
-    IvfpqQuery(QueryShardContext context) {
+    private CodeTableCache cache;
+
+    private ParallelScan scan;
+
+    private AnnSearchMetrics metrics;
+
+    private ResultCache resultCache;
+
+    IvfpqQuery(QueryShardContext context, CodeTableCache cache, ParallelScan scan, AnnSearchMetrics metrics,
+               ResultCache resultCache) {
         this.context = context;
+        this.cache = cache;
+        this.scan = scan;
+        this.metrics = metrics;
+        this.resultCache = resultCache;
     }
 
-    Query parse(Map<String, Float> fieldNames, Object value, int nprobe) {
-        float[] features = ArrayUtils.parseFloatArrayCsv((String) value);
+    Query parse(Map<String, Float> fieldNames, float[] features, int nprobe, int size, int rerank,
+                ScoreMode scoreMode, Query filter, int maxNprobe, int minCandidates) {
         List<Query> fieldQueries = new ArrayList<>();
-        for (String field : fieldNames.keySet()) {
+        for (Map.Entry<String, Float> fieldEntry : fieldNames.entrySet()) {
+            String field = fieldEntry.getKey();
             MappedFieldType fieldMapper = context.fieldMapper(field);
             Analyzer analyzer = context.getSearchAnalyzer(fieldMapper);
             while (analyzer instanceof NamedAnalyzer) {
@@ -67,94 +66,70 @@ class IvfpqQuery {
             if (!(analyzer instanceof IvfpqAnalyzer)) {
                 throw new ElasticsearchException("illegal analyzer: " + analyzer);
             }
-            ProductQuantizer pq = ((IvfpqAnalyzer) analyzer).getProductQuantizer();
-            ExactSearch cq = ((IvfpqAnalyzer) analyzer).getCoarseQuantizer();
-            for (int nearest : cq.searchNearest(features, nprobe)) {
-                float[] residual = cq.getResidual(nearest, features);
-                float[] table = pq.getCodeTable(residual);
-                Query query = new FunctionScoreQuery(
-                        new TermQuery(new Term(field, String.valueOf(nearest))),
-                        new CustomValueSource(field, pq, table));
-                fieldQueries.add(query);
+            Query query = createFieldQuery(field, (IvfpqAnalyzer) analyzer, features, nprobe, size, rerank, scoreMode,
+                    filter, maxNprobe, minCandidates, cache, scan, metrics, resultCache);
+            float boost = fieldEntry.getValue();
+            if (boost != 1f) {
+                query = new BoostQuery(query, boost);
             }
+            fieldQueries.add(query);
+        }
+        if (fieldQueries.size() == 1) {
+            return fieldQueries.get(0);
         }
         return new DisjunctionMaxQuery(fieldQueries, 1.0f);
     }
 
-    private class CustomValueSource extends DoubleValuesSource {
-
-        private String field;
-
-        private ProductQuantizer pq;
-
-        private float[] codeTable;
-
-        CustomValueSource(String field, ProductQuantizer pq, float[] codeTable) {
-            this.field = field;
-            this.pq = pq;
-            this.codeTable = codeTable;
-        }
-
-        @Override
-        public DoubleValues getValues(LeafReaderContext leafReaderContext, DoubleValues scores) {
-            return new DoubleValues() {
-
-                private float value;
-
-                @Override
-                public double doubleValue() {
-                    return value;
-                }
-
-                @Override
-                public boolean advanceExact(int doc) throws IOException {
-                    Document document = leafReaderContext.reader()
-                            .document(doc, new HashSet<>(Collections.singletonList(
-                                    IvfpqFieldMapper.getCodesField(field))));
-                    BytesRef bytesRef = document.getBinaryValue(
-                            IvfpqFieldMapper.getCodesField(field));
-                    if (bytesRef == null) {
-                        return false;
-                    }
-                    short[] codes = ArrayUtils.decodeShortArray(bytesRef.bytes);
-                    value = pq.getDistance(codeTable, codes);
-                    return true;
-                }
-            };
-        }
-
-        @Override
-        public boolean needsScores() {
-            return false;
+    /**
+     * Selects the inverted lists to probe and builds their distance tables for one field, taking
+     * them from the cache when it is given. Under cosine the query is normalized first, and with a
+     * rotation the lists and tables are those of the rotated query. With a positive
+     * {@code minCandidates}, {@code nprobe} is the least number of lists, and the next nearest ones
+     * are probed until the lists hold {@code minCandidates} documents of the shard. With a
+     * {@code filter}, more lists may be probed to find {@code size} documents. No more than
+     * {@code maxNprobe} lists are probed in either case.
+     * The lists are scanned on the calling thread unless {@code scan} is given, the work done is
+     * counted by {@code metrics} and the nearest documents are cached by {@code resultCache} when
+     * given.
+     */
+    static Query createFieldQuery(String field, IvfpqAnalyzer analyzer, float[] features, int nprobe, int size,
+                                  int rerank, ScoreMode scoreMode, Query filter, int maxNprobe, int minCandidates,
+                                  CodeTableCache cache, ParallelScan scan, AnnSearchMetrics metrics,
+                                  ResultCache resultCache) {
+        QueryBreakdown breakdown = new QueryBreakdown();
+        long start = System.nanoTime();
+        if (analyzer.getMetric().normalizes()) {
+            features = features.clone();
+            analyzer.normalize(features);
         }
-
-        @Override
-        public DoubleValuesSource rewrite(IndexSearcher reader) {
-            return this;
+        float[] rotated = analyzer.rotate(features);
+        int[] probes = searchProbes(analyzer, rotated, nprobe, cache);
+        breakdown.coarseNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        float[][] tables = new float[probes.length][];
+        for (int i = 0; i < probes.length; ++i) {
+            tables[i] = getCodeTable(analyzer, rotated, probes[i], cache);
         }
-
-        @Override
-        public boolean equals(Object o) {
-            if (o instanceof IvfpqQuery) {
-                return o.hashCode() == this.hashCode();
+        float[] biases = null;
+        if (analyzer.getMetric() != Metric.L2) {
+            biases = new float[probes.length];
+            for (int i = 0; i < probes.length; ++i) {
+                biases[i] = analyzer.getBias(probes[i], rotated);
             }
-            return false;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(field, codeTable);
         }
+        breakdown.codeTableNanos = System.nanoTime() - start;
+        return new IvfpqKnnQuery(field, features, rotated, analyzer, cache, scan, metrics, resultCache, breakdown,
+                probes, tables, biases, size, rerank, scoreMode, filter, Math.max(nprobe, maxNprobe), minCandidates);
+    }
 
-        @Override
-        public String toString() {
-            return null;
-        }
+    static int[] searchProbes(IvfpqAnalyzer analyzer, float[] features, int nprobe, CodeTableCache cache) {
+        return cache == null ? analyzer.getCoarseQuantizer().searchNearest(features, nprobe)
+                : cache.getProbes(analyzer, features, nprobe);
+    }
 
-        @Override
-        public boolean isCacheable(LeafReaderContext ctx) {
-            return false;
-        }
+    static float[] getCodeTable(IvfpqAnalyzer analyzer, float[] features, int centroid, CodeTableCache cache) {
+        return cache == null ? analyzer.getCodeTable(centroid, features)
+                : cache.getCodeTable(analyzer, features, centroid);
     }
 
 }
@@ -14,16 +14,21 @@
 package org.elasticsearch.search;
 
 import org.apache.lucene.search.Query;
+import org.elasticsearch.ann.ArrayUtils;
 import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.DeprecationHandler;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
 import org.elasticsearch.index.query.QueryShardContext;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
@@ -34,77 +39,232 @@ public class IvfpqQueryBuilder extends AbstractQueryBuilder<IvfpqQueryBuilder> {
 
     private static final int DEFAULT_NPROBE = 3;
 
+    private static final int DEFAULT_SIZE = 10;
+
+    private static final int DEFAULT_RERANK = 0;
+
+    private static final ScoreMode DEFAULT_SCORE_MODE = ScoreMode.SIMILARITY;
+
+    private static final int DEFAULT_MAX_NPROBE = 64;
+
+    private static final int DEFAULT_MIN_NPROBE = 1;
+
+    private static final int DEFAULT_MIN_CANDIDATES = 0;
+
     private static final ParseField QUERY_FIELD = new ParseField("query");
 
     private static final ParseField FIELDS_FIELD = new ParseField("fields");
 
     private static final ParseField NPROBE_FIELD = new ParseField("nprobe");
 
-    private final Object value;
+    private static final ParseField SIZE_FIELD = new ParseField("size");
+
+    private static final ParseField RERANK_FIELD = new ParseField("rerank");
+
+    private static final ParseField SCORE_MODE_FIELD = new ParseField("score_mode");
+
+    private static final ParseField FILTER_FIELD = new ParseField("filter");
+
+    private static final ParseField MAX_NPROBE_FIELD = new ParseField("max_nprobe");
+
+    private static final ParseField MIN_NPROBE_FIELD = new ParseField("min_nprobe");
+
+    private static final ParseField MIN_CANDIDATES_FIELD = new ParseField("min_candidates");
+
+    private final float[] vector;
 
     private Map<String, Float> fieldsBoosts;
 
     private int nprobe;
 
-    private IvfpqQueryBuilder(Object value, Map<String, Float> fieldsBoosts, int nprobe) {
-        if (value == null) {
+    private int size;
+
+    private int rerank;
+
+    private ScoreMode scoreMode;
+
+    /**
+     * Applied inside the scan of the inverted lists, or {@code null}.
+     */
+    private QueryBuilder filter;
+
+    private int maxNprobe;
+
+    /**
+     * With a positive {@code minCandidates}, {@code nprobe} is ignored and the nearest lists are
+     * probed until they hold that many documents of a shard, at least {@code minNprobe} and at most
+     * {@code maxNprobe} of them.
+     */
+    private int minNprobe;
+
+    private int minCandidates;
+
+    /**
+     * The node's cache of distance tables, not serialized; {@code null} on builders that were not
+     * created by the plugin's parsers.
+     */
+    private CodeTableCache cache;
+
+    /**
+     * Runs the scan of the inverted lists on the node's {@code ann_search} pool, not serialized
+     * either; {@code null} scans on the search thread.
+     */
+    private ParallelScan scan;
+
+    /**
+     * The node's counters of the work done by ivfpq queries, not serialized either; {@code null}
+     * counts nothing.
+     */
+    private AnnSearchMetrics metrics;
+
+    /**
+     * The node's cache of the nearest documents of queries, not serialized either; {@code null}
+     * caches nothing.
+     */
+    private ResultCache resultCache;
+
+    private IvfpqQueryBuilder(float[] vector, Map<String, Float> fieldsBoosts, int nprobe, int size,
+                              int rerank, ScoreMode scoreMode, QueryBuilder filter, int maxNprobe, int minNprobe,
+                              int minCandidates) {
+        if (vector == null || vector.length == 0) {
             throw new IllegalArgumentException("[" + NAME + "] requires query value");
         }
-        this.value = value;
+        if (nprobe < 1) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [nprobe] to be positive");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [size] to be positive");
+        }
+        if (rerank < 0) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [rerank] to be non-negative");
+        }
+        if (maxNprobe < 0) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [max_nprobe] to be non-negative");
+        }
+        if (minNprobe < 1) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [min_nprobe] to be positive");
+        }
+        if (minCandidates < 0) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [min_candidates] to be non-negative");
+        }
+        this.vector = vector;
         this.fieldsBoosts = fieldsBoosts;
         this.nprobe = nprobe;
+        this.size = size;
+        this.rerank = rerank;
+        this.scoreMode = scoreMode;
+        this.filter = filter;
+        this.maxNprobe = maxNprobe;
+        this.minNprobe = minNprobe;
+        this.minCandidates = minCandidates;
     }
 
     public IvfpqQueryBuilder(StreamInput in) throws IOException {
+        this(in, null, null, null, null);
+    }
+
+    public IvfpqQueryBuilder(StreamInput in, CodeTableCache cache, ParallelScan scan, AnnSearchMetrics metrics,
+                             ResultCache resultCache) throws IOException {
         super(in);
-        value = in.readGenericValue();
+        this.cache = cache;
+        this.scan = scan;
+        this.metrics = metrics;
+        this.resultCache = resultCache;
+        vector = in.readFloatArray();
         nprobe = in.readVInt();
-        int size = in.readVInt();
+        size = in.readVInt();
+        rerank = in.readVInt();
+        scoreMode = ScoreMode.readFromStream(in);
+        int fieldsSize = in.readVInt();
         fieldsBoosts = new TreeMap<>();
-        for (int i = 0; i < size; i++) {
+        for (int i = 0; i < fieldsSize; i++) {
             fieldsBoosts.put(in.readString(), in.readFloat());
         }
+        filter = in.readOptionalNamedWriteable(QueryBuilder.class);
+        maxNprobe = in.readVInt();
+        minNprobe = in.readVInt();
+        minCandidates = in.readVInt();
     }
 
     @Override
     protected void doWriteTo(StreamOutput streamOutput) throws IOException {
-        streamOutput.writeGenericValue(value);
+        streamOutput.writeFloatArray(vector);
         streamOutput.writeVInt(nprobe);
+        streamOutput.writeVInt(size);
+        streamOutput.writeVInt(rerank);
+        scoreMode.writeTo(streamOutput);
         streamOutput.writeVInt(fieldsBoosts.size());
         for (Map.Entry<String, Float> fieldsEntry : fieldsBoosts.entrySet()) {
             streamOutput.writeString(fieldsEntry.getKey());
             streamOutput.writeFloat(fieldsEntry.getValue());
         }
+        streamOutput.writeOptionalNamedWriteable(filter);
+        streamOutput.writeVInt(maxNprobe);
+        streamOutput.writeVInt(minNprobe);
+        streamOutput.writeVInt(minCandidates);
     }
 
     @Override
     protected void doXContent(XContentBuilder xContentBuilder, Params params) throws IOException {
         xContentBuilder.startObject(NAME);
-        xContentBuilder.field(QUERY_FIELD.getPreferredName(), value);
+        xContentBuilder.array(QUERY_FIELD.getPreferredName(), vector);
         xContentBuilder.field(NPROBE_FIELD.getPreferredName(), nprobe);
+        xContentBuilder.field(SIZE_FIELD.getPreferredName(), size);
+        xContentBuilder.field(RERANK_FIELD.getPreferredName(), rerank);
+        xContentBuilder.field(SCORE_MODE_FIELD.getPreferredName(), scoreMode.toString());
         xContentBuilder.startArray(FIELDS_FIELD.getPreferredName());
         for (Map.Entry<String, Float> fieldEntry : this.fieldsBoosts.entrySet()) {
             xContentBuilder.value(fieldEntry.getKey() + "^" + fieldEntry.getValue());
         }
         xContentBuilder.endArray();
+        if (filter != null) {
+            xContentBuilder.field(FILTER_FIELD.getPreferredName());
+            filter.toXContent(xContentBuilder, params);
+        }
+        xContentBuilder.field(MAX_NPROBE_FIELD.getPreferredName(), maxNprobe);
+        xContentBuilder.field(MIN_NPROBE_FIELD.getPreferredName(), minNprobe);
+        xContentBuilder.field(MIN_CANDIDATES_FIELD.getPreferredName(), minCandidates);
         xContentBuilder.endObject();
     }
 
     @Override
-    protected Query doToQuery(QueryShardContext queryShardContext) {
-        IvfpqQuery ivfpqQuery = new IvfpqQuery(queryShardContext);
-        return ivfpqQuery.parse(fieldsBoosts, value, nprobe);
+    protected QueryBuilder doRewrite(QueryRewriteContext queryRewriteContext) throws IOException {
+        if (filter != null) {
+            QueryBuilder rewritten = filter.rewrite(queryRewriteContext);
+            if (rewritten != filter) {
+                IvfpqQueryBuilder builder = new IvfpqQueryBuilder(vector, fieldsBoosts, nprobe, size, rerank,
+                        scoreMode, rewritten, maxNprobe, minNprobe, minCandidates);
+                builder.cache = cache;
+                builder.scan = scan;
+                builder.metrics = metrics;
+                builder.resultCache = resultCache;
+                return builder;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext queryShardContext) throws IOException {
+        Query filterQuery = filter == null ? null : filter.toQuery(queryShardContext);
+        IvfpqQuery ivfpqQuery = new IvfpqQuery(queryShardContext, cache, scan, metrics, resultCache);
+        return ivfpqQuery.parse(fieldsBoosts, vector, minCandidates > 0 ? minNprobe : nprobe, size, rerank, scoreMode,
+                filterQuery, maxNprobe, minCandidates);
     }
 
     @Override
     protected boolean doEquals(IvfpqQueryBuilder ivfpqQueryBuilder) {
-        return ivfpqQueryBuilder.value.equals(value) && ivfpqQueryBuilder.fieldsBoosts
-                .equals(fieldsBoosts);
+        return Arrays.equals(ivfpqQueryBuilder.vector, vector) && ivfpqQueryBuilder.fieldsBoosts
+                .equals(fieldsBoosts) && ivfpqQueryBuilder.nprobe == nprobe && ivfpqQueryBuilder.size == size
+                && ivfpqQueryBuilder.rerank == rerank && ivfpqQueryBuilder.scoreMode == scoreMode
+                && Objects.equals(ivfpqQueryBuilder.filter, filter) && ivfpqQueryBuilder.maxNprobe == maxNprobe
+                && ivfpqQueryBuilder.minNprobe == minNprobe && ivfpqQueryBuilder.minCandidates == minCandidates;
     }
 
     @Override
     protected int doHashCode() {
-        return Objects.hash(value, fieldsBoosts);
+        return Objects.hash(Arrays.hashCode(vector), fieldsBoosts, nprobe, size, rerank, scoreMode, filter, maxNprobe,
+                minNprobe, minCandidates);
     }
 
     @Override
@@ -113,8 +273,21 @@ public class IvfpqQueryBuilder extends AbstractQueryBuilder<IvfpqQueryBuilder> {
     }
 
     public static IvfpqQueryBuilder fromXContent(XContentParser parser) throws IOException {
-        Object value = null;
+        return fromXContent(parser, null, null, null, null);
+    }
+
+    public static IvfpqQueryBuilder fromXContent(XContentParser parser, CodeTableCache cache, ParallelScan scan,
+                                                 AnnSearchMetrics metrics, ResultCache resultCache)
+            throws IOException {
+        float[] vector = null;
         int nprobe = DEFAULT_NPROBE;
+        int size = DEFAULT_SIZE;
+        int rerank = DEFAULT_RERANK;
+        ScoreMode scoreMode = DEFAULT_SCORE_MODE;
+        QueryBuilder filter = null;
+        int maxNprobe = DEFAULT_MAX_NPROBE;
+        int minNprobe = DEFAULT_MIN_NPROBE;
+        int minCandidates = DEFAULT_MIN_CANDIDATES;
         Map<String, Float> fieldsBoosts = new TreeMap<>();
         XContentParser.Token token;
         String currentFieldName = null;
@@ -130,16 +303,64 @@ public class IvfpqQueryBuilder extends AbstractQueryBuilder<IvfpqQueryBuilder> {
                 } else if (token.isValue()) {
                     parseFieldAndBoost(parser, fieldsBoosts);
                 }
+            } else if (token == XContentParser.Token.START_ARRAY
+                    && QUERY_FIELD.match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
+                vector = parseFloatArray(parser);
+            } else if (token == XContentParser.Token.START_OBJECT
+                    && FILTER_FIELD.match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
+                filter = parseInnerQueryBuilder(parser);
             } else if (token.isValue()) {
                 if (QUERY_FIELD
                         .match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
-                    value = parser.objectText();
+                    if (token == XContentParser.Token.VALUE_EMBEDDED_OBJECT) {
+                        byte[] bytes = parser.binaryValue();
+                        vector = new float[bytes.length / 4];
+                        ArrayUtils.decodeFloatArray(bytes, 0, bytes.length, vector);
+                    } else {
+                        vector = ArrayUtils.parseFloatArray(parser.text());
+                    }
                 } else if (NPROBE_FIELD.match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
                     nprobe = parser.intValue();
+                } else if (SIZE_FIELD.match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
+                    size = parser.intValue();
+                } else if (RERANK_FIELD.match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
+                    rerank = parser.intValue();
+                } else if (SCORE_MODE_FIELD.match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
+                    scoreMode = ScoreMode.fromString(parser.text());
+                } else if (MAX_NPROBE_FIELD.match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
+                    maxNprobe = parser.intValue();
+                } else if (MIN_NPROBE_FIELD.match(currentFieldName, DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
+                    minNprobe = parser.intValue();
+                } else if (MIN_CANDIDATES_FIELD.match(currentFieldName,
+                        DeprecationHandler.THROW_UNSUPPORTED_OPERATION)) {
+                    minCandidates = parser.intValue();
                 }
             }
         }
-        return new IvfpqQueryBuilder(value, fieldsBoosts, nprobe);
+        IvfpqQueryBuilder builder = new IvfpqQueryBuilder(vector, fieldsBoosts, nprobe, size, rerank, scoreMode,
+                filter, maxNprobe, minNprobe, minCandidates);
+        builder.cache = cache;
+        builder.scan = scan;
+        builder.metrics = metrics;
+        builder.resultCache = resultCache;
+        return builder;
+    }
+
+    private static float[] parseFloatArray(XContentParser parser) throws IOException {
+        float[] floats = new float[16];
+        int size = 0;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token != XContentParser.Token.VALUE_NUMBER) {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] query vector must only contain numbers, found [" + token + "]");
+            }
+            if (size == floats.length) {
+                floats = Arrays.copyOf(floats, size * 2);
+            }
+            floats[size++] = parser.floatValue();
+        }
+        return Arrays.copyOf(floats, size);
     }
 
     private static void parseFieldAndBoost(XContentParser parser, Map<String, Float> fieldsBoosts)
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Reads codes kept in doc values or, for documents indexed before the mapping switched to doc
+ * values, in stored fields. Doc values iterators only move forward, so a fresh one is pulled
+ * for each inverted list.
+ */
+final class LeafCodes {
+
+    private final LeafReader reader;
+
+    private final String codesField;
+
+    private final Set<String> storedFields;
+
+    private BinaryDocValues docValues;
+
+    LeafCodes(LeafReader reader, String codesField) {
+        this.reader = reader;
+        this.codesField = codesField;
+        this.storedFields = Collections.singleton(codesField);
+    }
+
+    void reset() throws IOException {
+        docValues = reader.getBinaryDocValues(codesField);
+    }
+
+    BytesRef get(int doc) throws IOException {
+        if (docValues != null && docValues.advanceExact(doc)) {
+            return docValues.binaryValue();
+        }
+        Document document = reader.document(doc, storedFields);
+        return document.getBinaryValue(codesField);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.mapper.IvfpqFieldMapper;
+
+import java.io.IOException;
+
+/**
+ * Reads the inverted lists of an ivfpq field in a segment: {@link #seek} positions the reader on
+ * a list, then {@link #nextDoc()} walks its accepted documents along with their {@link #codes()},
+ * whether the codes are kept in payloads or, see {@link LeafCodes}, next to the postings.
+ */
+final class ListReader {
+
+    private final boolean payloads;
+
+    private final TermsEnum termsEnum;
+
+    private final LeafCodes leafCodes;
+
+    private final Bits acceptDocs;
+
+    private PostingsEnum postings;
+
+    private BytesRef codes;
+
+    private ListReader(LeafReader reader, String field, Terms terms, Bits acceptDocs) throws IOException {
+        FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(field);
+        this.payloads = fieldInfo != null && fieldInfo.hasPayloads();
+        this.termsEnum = terms.iterator();
+        this.leafCodes = payloads ? null : new LeafCodes(reader, IvfpqFieldMapper.getCodesField(field));
+        this.acceptDocs = acceptDocs;
+    }
+
+    /**
+     * Returns a reader of the field's lists that skips documents outside of {@code acceptDocs}, or
+     * {@code null} if the segment has no such field.
+     */
+    static ListReader create(LeafReader reader, String field, Bits acceptDocs) throws IOException {
+        Terms terms = reader.terms(field);
+        return terms == null ? null : new ListReader(reader, field, terms, acceptDocs);
+    }
+
+    /**
+     * Positions the reader before the first document of the list of the given term. Returns
+     * {@code false}, and leaves the reader unpositioned, if the segment has no such list.
+     */
+    boolean seek(BytesRef term) throws IOException {
+        if (!termsEnum.seekExact(term)) {
+            return false;
+        }
+        postings = termsEnum.postings(postings, payloads ? PostingsEnum.PAYLOADS : PostingsEnum.NONE);
+        if (leafCodes != null) {
+            leafCodes.reset();
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next accepted document of the list that has codes, or returns
+     * {@link DocIdSetIterator#NO_MORE_DOCS}.
+     */
+    int nextDoc() throws IOException {
+        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            if (acceptDocs != null && !acceptDocs.get(doc)) {
+                continue;
+            }
+            if (payloads) {
+                postings.nextPosition();
+                codes = postings.getPayload();
+            } else {
+                codes = leafCodes.get(doc);
+            }
+            if (codes != null) {
+                return doc;
+            }
+        }
+        return DocIdSetIterator.NO_MORE_DOCS;
+    }
+
+    /**
+     * Returns the codes of the current document, only valid until the next call to {@link #nextDoc()}.
+     */
+    BytesRef codes() {
+        return codes;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the scans of the segments of an ivfpq query, or of chunks of their probed lists, on the
+ * {@code ann_search} thread pool. A query is split into at most {@code ann.search.parallelism}
+ * tasks, {@code 1} scans on the search thread alone. The calling thread runs one task itself and
+ * any task the pool rejects, so a saturated pool degrades to a sequential scan.
+ */
+public class ParallelScan {
+
+    public static final String THREAD_POOL_NAME = "ann_search";
+
+    public static final Setting<Integer> PARALLELISM_SETTING =
+            Setting.intSetting("ann.search.parallelism", 1, 1, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private volatile int parallelism;
+
+    private volatile ExecutorService executor;
+
+    public ParallelScan(Settings settings) {
+        this.parallelism = PARALLELISM_SETTING.get(settings);
+    }
+
+    /**
+     * The pool sized to the node's processors, configured with {@code thread_pool.ann_search.size}
+     * and {@code thread_pool.ann_search.queue_size}.
+     */
+    public static ExecutorBuilder<?> executorBuilder(Settings settings) {
+        return new FixedExecutorBuilder(settings, THREAD_POOL_NAME, EsExecutors.numberOfProcessors(settings),
+                DEFAULT_QUEUE_SIZE, "thread_pool." + THREAD_POOL_NAME);
+    }
+
+    public void start(ThreadPool threadPool, ClusterSettings clusterSettings) {
+        executor = threadPool.executor(THREAD_POOL_NAME);
+        clusterSettings.addSettingsUpdateConsumer(PARALLELISM_SETTING, value -> parallelism = value);
+    }
+
+    /**
+     * Returns the number of tasks a query may be split into, {@code 1} until the pool is started.
+     */
+    int parallelism() {
+        return executor == null ? 1 : parallelism;
+    }
+
+    /**
+     * Runs the tasks and waits for all of them, rethrowing the first failure.
+     */
+    void run(List<? extends Callable<Void>> tasks) throws IOException {
+        final ExecutorService executor = this.executor;
+        if (executor == null || tasks.size() == 1) {
+            for (Callable<Void> task : tasks) {
+                call(task);
+            }
+            return;
+        }
+        List<FutureTask<Void>> futures = new ArrayList<>(tasks.size() - 1);
+        for (int i = 1; i < tasks.size(); ++i) {
+            FutureTask<Void> future = new FutureTask<>(tasks.get(i));
+            futures.add(future);
+            try {
+                executor.execute(future);
+            } catch (EsRejectedExecutionException e) {
+                future.run();
+            }
+        }
+        call(tasks.get(0));
+        for (FutureTask<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ThreadInterruptedException(e);
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+    }
+
+    private static void call(Callable<Void> task) throws IOException {
+        try {
+            task.call();
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) throws IOException {
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IllegalStateException("failed to scan the inverted lists", t);
+    }
+}
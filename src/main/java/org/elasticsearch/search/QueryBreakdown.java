@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+/**
+ * The work one ivfpq query did on a shard. It is added to the node's {@link AnnSearchMetrics} and
+ * shows up in the description of the rewritten query, and so in the output of the profile API.
+ */
+final class QueryBreakdown {
+
+    long probedLists;
+
+    long skippedLists;
+
+    long scoredCandidates;
+
+    long prunedCandidates;
+
+    long codesReadInBytes;
+
+    long coarseNanos;
+
+    long codeTableNanos;
+
+    long filterNanos;
+
+    long scanNanos;
+
+    QueryBreakdown copy() {
+        QueryBreakdown copy = new QueryBreakdown();
+        copy.probedLists = probedLists;
+        copy.skippedLists = skippedLists;
+        copy.scoredCandidates = scoredCandidates;
+        copy.prunedCandidates = prunedCandidates;
+        copy.codesReadInBytes = codesReadInBytes;
+        copy.coarseNanos = coarseNanos;
+        copy.codeTableNanos = codeTableNanos;
+        copy.filterNanos = filterNanos;
+        copy.scanNanos = scanNanos;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "ivfpq[probed_lists=" + probedLists + ",skipped_lists=" + skippedLists
+                + ",scored_candidates=" + scoredCandidates + ",pruned_candidates=" + prunedCandidates
+                + ",codes_read_in_bytes=" + codesReadInBytes + ",coarse_nanos=" + coarseNanos
+                + ",code_table_nanos=" + codeTableNanos + ",filter_nanos=" + filterNanos
+                + ",scan_nanos=" + scanNanos + "]";
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Node level cache of the nearest documents an ivfpq field query found in a shard, so that hot
+ * repeated queries, such as "similar items" lookups of popular products, skip the scan. Entries
+ * are keyed by the top level reader the query was rewritten against, the field and analyzer, the
+ * query vector, the probed lists and the other parameters of the query. They are dropped when the
+ * reader is closed, so a refresh that changes the shard invalidates them, and evicted least
+ * recently used first once their estimated size exceeds {@code ann.result_cache.size}, which
+ * defaults to {@code 0}, disabling the cache.
+ */
+public class ResultCache {
+
+    public static final Setting<ByteSizeValue> SIZE_SETTING =
+            Setting.memorySizeSetting("ann.result_cache.size", "0", Setting.Property.NodeScope);
+
+    /**
+     * Rough size of a key and its cache entry, excluding the arrays.
+     */
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private final Cache<Key, Result> cache;
+
+    /**
+     * Cache keys of the readers whose close listener drops their entries.
+     */
+    private final Set<IndexReader.CacheKey> readers = ConcurrentCollections.newConcurrentSet();
+
+    public ResultCache(Settings settings) {
+        final long size = SIZE_SETTING.get(settings).getBytes();
+        if (size > 0) {
+            cache = CacheBuilder.<Key, Result>builder()
+                    .setMaximumWeight(size)
+                    .weigher(ResultCache::weigh)
+                    .build();
+        } else {
+            cache = null;
+        }
+    }
+
+    /**
+     * Returns the key of the query's results on the reader, or {@code null} if they can't be
+     * cached because the cache is disabled or the reader can't tell when it is closed.
+     */
+    Key key(IndexReader reader, String field, long analyzer, float[] features, int[] probes, int k, int rerank,
+            ScoreMode scoreMode, Query filter, int maxNprobe, int minCandidates) {
+        if (cache == null) {
+            return null;
+        }
+        final IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        if (cacheHelper == null) {
+            return null;
+        }
+        final IndexReader.CacheKey readerKey = cacheHelper.getKey();
+        if (readers.add(readerKey)) {
+            cacheHelper.addClosedListener(this::invalidate);
+        }
+        return new Key(readerKey, field, analyzer, features, probes, k, rerank, scoreMode, filter, maxNprobe,
+                minCandidates);
+    }
+
+    /**
+     * Returns the cached results, whose arrays must not be modified, or {@code null}.
+     */
+    Result get(Key key) {
+        return cache.get(key);
+    }
+
+    void put(Key key, int[] docs, float[] scores) {
+        cache.put(key, new Result(docs.clone(), scores.clone()));
+    }
+
+    private void invalidate(IndexReader.CacheKey reader) {
+        readers.remove(reader);
+        List<Key> keys = new ArrayList<>();
+        for (Key key : cache.keys()) {
+            if (key.reader == reader) {
+                keys.add(key);
+            }
+        }
+        for (Key key : keys) {
+            cache.invalidate(key);
+        }
+    }
+
+    public ResultCacheStats stats() {
+        if (cache == null) {
+            return new ResultCacheStats(0, 0, 0, 0, 0);
+        }
+        Cache.CacheStats stats = cache.stats();
+        return new ResultCacheStats(stats.getHits(), stats.getMisses(), stats.getEvictions(), cache.count(),
+                cache.weight());
+    }
+
+    private static long weigh(Key key, Result result) {
+        return ENTRY_OVERHEAD + 4L * key.features.length + 4L * key.probes.length + 8L * result.docs.length;
+    }
+
+    /**
+     * The top level doc ids and scores of the nearest documents.
+     */
+    static final class Result {
+
+        final int[] docs;
+
+        final float[] scores;
+
+        Result(int[] docs, float[] scores) {
+            this.docs = docs;
+            this.scores = scores;
+        }
+    }
+
+    static final class Key {
+
+        private final IndexReader.CacheKey reader;
+
+        private final String field;
+
+        private final long analyzer;
+
+        private final float[] features;
+
+        private final int[] probes;
+
+        private final int k;
+
+        private final int rerank;
+
+        private final ScoreMode scoreMode;
+
+        private final Query filter;
+
+        private final int maxNprobe;
+
+        private final int minCandidates;
+
+        private final int hashCode;
+
+        Key(IndexReader.CacheKey reader, String field, long analyzer, float[] features, int[] probes, int k, int rerank,
+            ScoreMode scoreMode, Query filter, int maxNprobe, int minCandidates) {
+            this.reader = reader;
+            this.field = field;
+            this.analyzer = analyzer;
+            this.features = features;
+            this.probes = probes;
+            this.k = k;
+            this.rerank = rerank;
+            this.scoreMode = scoreMode;
+            this.filter = filter;
+            this.maxNprobe = maxNprobe;
+            this.minCandidates = minCandidates;
+            this.hashCode = Objects.hash(reader, field, analyzer, Arrays.hashCode(features),
+                    Arrays.hashCode(probes), k, rerank, scoreMode, filter, maxNprobe, minCandidates);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return reader == key.reader
+                    && analyzer == key.analyzer
+                    && k == key.k
+                    && rerank == key.rerank
+                    && scoreMode == key.scoreMode
+                    && maxNprobe == key.maxNprobe
+                    && minCandidates == key.minCandidates
+                    && field.equals(key.field)
+                    && Objects.equals(filter, key.filter)
+                    && Arrays.equals(features, key.features)
+                    && Arrays.equals(probes, key.probes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Turns the approximate distance of a hit into its score.
+ */
+public enum ScoreMode implements Writeable {
+
+    /**
+     * {@code 1 / (1 + d)}, so that nearer documents score higher and scores stay positive.
+     * Negative distances, which inner product metrics produce, map to {@code 1 - d}.
+     */
+    SIMILARITY {
+        @Override
+        public float score(float distance) {
+            return distance >= 0 ? 1 / (1 + distance) : 1 - distance;
+        }
+    },
+
+    /**
+     * {@code -d}, nearer documents score higher.
+     */
+    NEGATIVE_DISTANCE {
+        @Override
+        public float score(float distance) {
+            return -distance;
+        }
+    },
+
+    /**
+     * The raw distance, which requires sorting by {@code _score} in ascending order.
+     */
+    DISTANCE {
+        @Override
+        public float score(float distance) {
+            return distance;
+        }
+    };
+
+    public abstract float score(float distance);
+
+    public static ScoreMode fromString(String value) {
+        return valueOf(value.toUpperCase(Locale.ROOT));
+    }
+
+    public static ScoreMode readFromStream(StreamInput in) throws IOException {
+        return values()[in.readVInt()];
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(ordinal());
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
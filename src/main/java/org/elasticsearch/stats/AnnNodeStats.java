@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.stats;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.analysis.QuantizerRegistryStats;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.AnnSearchStats;
+import org.elasticsearch.search.CodeTableCacheStats;
+import org.elasticsearch.search.ResultCacheStats;
+
+import java.io.IOException;
+
+public class AnnNodeStats extends BaseNodeResponse implements ToXContentFragment {
+
+    private CodeTableCacheStats codeTableCache;
+
+    private QuantizerRegistryStats quantizers;
+
+    private AnnSearchStats search;
+
+    private ResultCacheStats resultCache;
+
+    AnnNodeStats() {
+    }
+
+    AnnNodeStats(DiscoveryNode node, CodeTableCacheStats codeTableCache, QuantizerRegistryStats quantizers,
+                 AnnSearchStats search, ResultCacheStats resultCache) {
+        super(node);
+        this.codeTableCache = codeTableCache;
+        this.quantizers = quantizers;
+        this.search = search;
+        this.resultCache = resultCache;
+    }
+
+    public CodeTableCacheStats getCodeTableCache() {
+        return codeTableCache;
+    }
+
+    public QuantizerRegistryStats getQuantizers() {
+        return quantizers;
+    }
+
+    public AnnSearchStats getSearch() {
+        return search;
+    }
+
+    public ResultCacheStats getResultCache() {
+        return resultCache;
+    }
+
+    static AnnNodeStats readNodeStats(StreamInput in) throws IOException {
+        AnnNodeStats stats = new AnnNodeStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        codeTableCache = new CodeTableCacheStats(in);
+        quantizers = new QuantizerRegistryStats(in);
+        search = new AnnSearchStats(in);
+        resultCache = new ResultCacheStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        codeTableCache.writeTo(out);
+        quantizers.writeTo(out);
+        search.writeTo(out);
+        resultCache.writeTo(out);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(getNode().getId());
+        builder.field("name", getNode().getName());
+        codeTableCache.toXContent(builder, params);
+        quantizers.toXContent(builder, params);
+        search.toXContent(builder, params);
+        resultCache.toXContent(builder, params);
+        return builder.endObject();
+    }
+}
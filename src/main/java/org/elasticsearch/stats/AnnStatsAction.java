@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.stats;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class AnnStatsAction extends Action<AnnStatsRequest, AnnStatsResponse, AnnStatsRequestBuilder> {
+
+    public static final AnnStatsAction INSTANCE = new AnnStatsAction();
+
+    public static final String NAME = "cluster:monitor/ann/stats";
+
+    private AnnStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public AnnStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new AnnStatsRequestBuilder(client, this);
+    }
+
+    @Override
+    public AnnStatsResponse newResponse() {
+        return new AnnStatsResponse();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.stats;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.analysis.QuantizerRegistry;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.AnnSearchMetrics;
+import org.elasticsearch.search.CodeTableCache;
+import org.elasticsearch.search.ResultCache;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+public class TransportAnnStatsAction extends TransportNodesAction<AnnStatsRequest, AnnStatsResponse,
+        TransportAnnStatsAction.NodeRequest, AnnNodeStats> {
+
+    private final CodeTableCache codeTableCache;
+
+    private final QuantizerRegistry quantizerRegistry;
+
+    private final AnnSearchMetrics searchMetrics;
+
+    private final ResultCache resultCache;
+
+    @Inject
+    public TransportAnnStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                   TransportService transportService, ActionFilters actionFilters,
+                                   IndexNameExpressionResolver indexNameExpressionResolver,
+                                   CodeTableCache codeTableCache, QuantizerRegistry quantizerRegistry,
+                                   AnnSearchMetrics searchMetrics, ResultCache resultCache) {
+        super(settings, AnnStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, AnnStatsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT,
+                AnnNodeStats.class);
+        this.codeTableCache = codeTableCache;
+        this.quantizerRegistry = quantizerRegistry;
+        this.searchMetrics = searchMetrics;
+        this.resultCache = resultCache;
+    }
+
+    @Override
+    protected AnnStatsResponse newResponse(AnnStatsRequest request, List<AnnNodeStats> responses,
+                                           List<FailedNodeException> failures) {
+        return new AnnStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, AnnStatsRequest request) {
+        return new NodeRequest(nodeId);
+    }
+
+    @Override
+    protected AnnNodeStats newNodeResponse() {
+        return new AnnNodeStats();
+    }
+
+    @Override
+    protected AnnNodeStats nodeOperation(NodeRequest request) {
+        return new AnnNodeStats(clusterService.localNode(), codeTableCache.stats(), quantizerRegistry.stats(),
+                searchMetrics.stats(), resultCache.stats());
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.train;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+
+import java.io.IOException;
+
+public class RestTrainAction extends BaseRestHandler {
+
+    public RestTrainAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.POST, "/_ann/train", this);
+        controller.registerHandler(RestRequest.Method.POST, "/{index}/_ann/train", this);
+    }
+
+    @Override
+    public String getName() {
+        return "ann_train_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        TrainRequest trainRequest = new TrainRequest();
+        try (XContentParser parser = request.contentParser()) {
+            TrainRequest.fromXContent(parser, trainRequest);
+        }
+        if (request.hasParam("index")) {
+            trainRequest.index(request.param("index"));
+        }
+        return channel -> client.execute(TrainAction.INSTANCE, trainRequest, new RestToXContentListener<>(channel));
+    }
+}
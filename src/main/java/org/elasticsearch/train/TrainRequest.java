@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.train;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.ann.Metric;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ObjectParser;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Samples vectors of a field from an index and trains an IVF-PQ codebook on them.
+ */
+public class TrainRequest extends ActionRequest {
+
+    static final ParseField INDEX_FIELD = new ParseField("index");
+    static final ParseField FIELD_FIELD = new ParseField("field");
+    static final ParseField NLIST_FIELD = new ParseField("nlist");
+    static final ParseField M_FIELD = new ParseField("m");
+    static final ParseField KSUB_FIELD = new ParseField("ksub");
+    static final ParseField SAMPLE_SIZE_FIELD = new ParseField("sample_size");
+    static final ParseField ITERATIONS_FIELD = new ParseField("iterations");
+    static final ParseField SEED_FIELD = new ParseField("seed");
+    static final ParseField CODEBOOK_FIELD = new ParseField("codebook");
+    static final ParseField METRIC_FIELD = new ParseField("metric");
+
+    private static final ObjectParser<TrainRequest, Void> PARSER = new ObjectParser<>("train", TrainRequest::new);
+
+    static {
+        PARSER.declareString(TrainRequest::index, INDEX_FIELD);
+        PARSER.declareString(TrainRequest::field, FIELD_FIELD);
+        PARSER.declareInt(TrainRequest::nlist, NLIST_FIELD);
+        PARSER.declareInt(TrainRequest::m, M_FIELD);
+        PARSER.declareInt(TrainRequest::ksub, KSUB_FIELD);
+        PARSER.declareInt(TrainRequest::sampleSize, SAMPLE_SIZE_FIELD);
+        PARSER.declareInt(TrainRequest::iterations, ITERATIONS_FIELD);
+        PARSER.declareLong(TrainRequest::seed, SEED_FIELD);
+        PARSER.declareString(TrainRequest::codebook, CODEBOOK_FIELD);
+        PARSER.declareString((request, metric) -> request.metric(Metric.fromString(metric)), METRIC_FIELD);
+    }
+
+    public static final int DEFAULT_KSUB = 256;
+    public static final int DEFAULT_SAMPLE_SIZE = 100000;
+    public static final int DEFAULT_ITERATIONS = 25;
+
+    private String index;
+
+    private String field;
+
+    private int nlist;
+
+    private int m;
+
+    private int ksub = DEFAULT_KSUB;
+
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+    private int iterations = DEFAULT_ITERATIONS;
+
+    private long seed;
+
+    private String codebook;
+
+    private Metric metric = Metric.L2;
+
+    public TrainRequest() {
+    }
+
+    public static TrainRequest fromXContent(XContentParser parser, TrainRequest request) throws IOException {
+        return PARSER.parse(parser, request, null);
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException e = null;
+        if (index == null) {
+            e = addValidationError("[index] is missing", e);
+        }
+        if (field == null) {
+            e = addValidationError("[field] is missing", e);
+        }
+        if (nlist <= 0) {
+            e = addValidationError("[nlist] must be positive", e);
+        }
+        if (m <= 0) {
+            e = addValidationError("[m] must be positive", e);
+        }
+        if (ksub <= 0 || ksub > 65536) {
+            e = addValidationError("[ksub] must be in [1, 65536]", e);
+        }
+        if (iterations <= 0) {
+            e = addValidationError("[iterations] must be positive", e);
+        }
+        if (sampleSize < Math.max(nlist, ksub)) {
+            e = addValidationError("[sample_size] must be at least [nlist] and [ksub]", e);
+        }
+        if (codebook != null && (codebook.isEmpty() || codebook.contains("/") || codebook.contains("\\")
+                || codebook.startsWith("."))) {
+            e = addValidationError("[codebook] must be a plain file name", e);
+        }
+        return e;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        index = in.readString();
+        field = in.readString();
+        nlist = in.readVInt();
+        m = in.readVInt();
+        ksub = in.readVInt();
+        sampleSize = in.readVInt();
+        iterations = in.readVInt();
+        seed = in.readLong();
+        codebook = in.readOptionalString();
+        metric = Metric.fromString(in.readString());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(index);
+        out.writeString(field);
+        out.writeVInt(nlist);
+        out.writeVInt(m);
+        out.writeVInt(ksub);
+        out.writeVInt(sampleSize);
+        out.writeVInt(iterations);
+        out.writeLong(seed);
+        out.writeOptionalString(codebook);
+        out.writeString(metric.toString());
+    }
+
+    public String index() {
+        return index;
+    }
+
+    public TrainRequest index(String index) {
+        this.index = index;
+        return this;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public TrainRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public int nlist() {
+        return nlist;
+    }
+
+    public TrainRequest nlist(int nlist) {
+        this.nlist = nlist;
+        return this;
+    }
+
+    public int m() {
+        return m;
+    }
+
+    public TrainRequest m(int m) {
+        this.m = m;
+        return this;
+    }
+
+    public int ksub() {
+        return ksub;
+    }
+
+    public TrainRequest ksub(int ksub) {
+        this.ksub = ksub;
+        return this;
+    }
+
+    public int sampleSize() {
+        return sampleSize;
+    }
+
+    public TrainRequest sampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+        return this;
+    }
+
+    public int iterations() {
+        return iterations;
+    }
+
+    public TrainRequest iterations(int iterations) {
+        this.iterations = iterations;
+        return this;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    public TrainRequest seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public String codebook() {
+        return codebook;
+    }
+
+    public TrainRequest codebook(String codebook) {
+        this.codebook = codebook;
+        return this;
+    }
+
+    public Metric metric() {
+        return metric;
+    }
+
+    /**
+     * The metric of the analyzer the codebook is for. Under {@code cosine} the samples are
+     * normalized before training, like the vectors are before they are encoded.
+     */
+    public TrainRequest metric(Metric metric) {
+        this.metric = metric;
+        return this;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.train;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.ann.Codebook;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * The trained codebook. When it was written to a file only the file name and checksum are
+ * returned, which is what the {@code ivfpq_analyzer} settings need; otherwise the centroids are
+ * returned inline in the format of the {@code coarseCentroids} and {@code pqCentroids} settings.
+ */
+public class TrainResponse extends ActionResponse implements ToXContentObject {
+
+    private int d;
+
+    private int m;
+
+    private int ksub;
+
+    private int nlist;
+
+    private int samples;
+
+    private long tookInMillis;
+
+    private long checksum;
+
+    private String codebook;
+
+    private float[] coarseCentroids;
+
+    private float[] pqCentroids;
+
+    TrainResponse() {
+    }
+
+    TrainResponse(Codebook trained, int samples, long tookInMillis, String codebook) {
+        this.d = trained.getDimension();
+        this.m = trained.getM();
+        this.ksub = trained.getKsub();
+        this.nlist = trained.getCoarseCentroids().length / d;
+        this.samples = samples;
+        this.tookInMillis = tookInMillis;
+        this.checksum = trained.getChecksum();
+        this.codebook = codebook;
+        if (codebook == null) {
+            this.coarseCentroids = trained.getCoarseCentroids();
+            this.pqCentroids = trained.getPqCentroids();
+        }
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public String getCodebook() {
+        return codebook;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        d = in.readVInt();
+        m = in.readVInt();
+        ksub = in.readVInt();
+        nlist = in.readVInt();
+        samples = in.readVInt();
+        tookInMillis = in.readVLong();
+        checksum = in.readLong();
+        codebook = in.readOptionalString();
+        if (in.readBoolean()) {
+            coarseCentroids = in.readFloatArray();
+            pqCentroids = in.readFloatArray();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(d);
+        out.writeVInt(m);
+        out.writeVInt(ksub);
+        out.writeVInt(nlist);
+        out.writeVInt(samples);
+        out.writeVLong(tookInMillis);
+        out.writeLong(checksum);
+        out.writeOptionalString(codebook);
+        out.writeBoolean(coarseCentroids != null);
+        if (coarseCentroids != null) {
+            out.writeFloatArray(coarseCentroids);
+            out.writeFloatArray(pqCentroids);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("took", tookInMillis);
+        builder.field("samples", samples);
+        builder.field("d", d);
+        builder.field("m", m);
+        builder.field("ksub", ksub);
+        builder.field("nlist", nlist);
+        builder.field("codebook_checksum", checksum);
+        if (codebook != null) {
+            builder.field("codebook", codebook);
+        } else {
+            builder.field("coarseCentroids", join(coarseCentroids));
+            builder.field("pqCentroids", join(pqCentroids));
+        }
+        return builder.endObject();
+    }
+
+    private static String join(float[] values) {
+        StringBuilder sb = new StringBuilder(values.length * 12);
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+}
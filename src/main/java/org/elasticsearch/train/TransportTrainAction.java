@@ -0,0 +1,207 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.train;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.analysis.IvfpqAnalyzerProvider;
+import org.elasticsearch.ann.AlgebraicOps;
+import org.elasticsearch.ann.ArrayUtils;
+import org.elasticsearch.ann.Codebook;
+import org.elasticsearch.ann.IvfpqTrainer;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.mapper.SeqNoFieldMapper;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Samples vectors with a seeded random score, trains on the generic thread pool with a fork-join
+ * pool sized to the node's processors and optionally writes the codebook to the node's
+ * {@code config/ann} directory.
+ */
+public class TransportTrainAction extends HandledTransportAction<TrainRequest, TrainResponse> {
+
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    private static final int SCROLL_SIZE = 1000;
+
+    private final Client client;
+
+    private final Environment environment;
+
+    @Inject
+    public TransportTrainAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                Client client, Environment environment) {
+        super(settings, TrainAction.NAME, threadPool, transportService, actionFilters, indexNameExpressionResolver,
+                TrainRequest::new);
+        this.client = client;
+        this.environment = environment;
+    }
+
+    @Override
+    protected void doExecute(TrainRequest request, ActionListener<TrainResponse> listener) {
+        threadPool.generic().execute(() -> {
+            try {
+                listener.onResponse(train(request));
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private TrainResponse train(TrainRequest request) throws IOException {
+        final long start = System.nanoTime();
+        Samples samples = sample(request);
+        if (samples.n < Math.max(request.nlist(), request.ksub())) {
+            throw new IllegalArgumentException("found [" + samples.n + "] vectors in [" + request.index() + "]["
+                    + request.field() + "] but at least [" + Math.max(request.nlist(), request.ksub())
+                    + "] are needed");
+        }
+        if (request.metric().normalizes()) {
+            AlgebraicOps.normalize(samples.x, samples.n, samples.d);
+        }
+        IvfpqTrainer trainer = new IvfpqTrainer(samples.d, request.nlist(), request.m(), request.ksub(),
+                request.iterations(), request.seed());
+        final int parallelism = EsExecutors.numberOfProcessors(settings);
+        ForkJoinPool pool = AccessController.doPrivileged((PrivilegedAction<ForkJoinPool>) () ->
+                new ForkJoinPool(parallelism));
+        Codebook codebook;
+        try {
+            codebook = trainer.train(samples.x, samples.n, pool);
+        } finally {
+            AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+                pool.shutdown();
+                return null;
+            });
+        }
+        if (request.codebook() != null) {
+            write(codebook, request.codebook());
+        }
+        final long took = (System.nanoTime() - start) / 1000000;
+        return new TrainResponse(codebook, samples.n, took, request.codebook());
+    }
+
+    private Samples sample(TrainRequest request) {
+        Samples samples = new Samples(request.sampleSize());
+        SearchResponse response = client.prepareSearch(request.index())
+                .setQuery(QueryBuilders.functionScoreQuery(ScoreFunctionBuilders.randomFunction()
+                        .seed(request.seed()).setField(SeqNoFieldMapper.NAME)))
+                .setFetchSource(request.field(), null)
+                .setSize(Math.min(SCROLL_SIZE, request.sampleSize()))
+                .setScroll(SCROLL_KEEP_ALIVE)
+                .get();
+        try {
+            while (response.getHits().getHits().length > 0 && samples.n < request.sampleSize()) {
+                for (SearchHit hit : response.getHits().getHits()) {
+                    if (samples.n == request.sampleSize()) {
+                        break;
+                    }
+                    samples.add(toVector(XContentMapValues.extractValue(request.field(), hit.getSourceAsMap())));
+                }
+                response = client.prepareSearchScroll(response.getScrollId()).setScroll(SCROLL_KEEP_ALIVE).get();
+            }
+        } finally {
+            client.prepareClearScroll().addScrollId(response.getScrollId()).get();
+        }
+        return samples;
+    }
+
+    private static float[] toVector(Object value) {
+        if (value instanceof String) {
+            return ArrayUtils.parseFloatArray((String) value);
+        } else if (value instanceof List) {
+            List<?> values = (List<?>) value;
+            float[] vector = new float[values.size()];
+            for (int i = 0; i < vector.length; ++i) {
+                vector[i] = ((Number) values.get(i)).floatValue();
+            }
+            return vector;
+        }
+        return null;
+    }
+
+    private void write(Codebook codebook, String name) throws IOException {
+        Path directory = environment.configFile().resolve(IvfpqAnalyzerProvider.CODEBOOK_DIRECTORY);
+        try {
+            AccessController.doPrivileged((PrivilegedExceptionAction<Void>) () -> {
+                Files.createDirectories(directory);
+                codebook.write(directory.resolve(name));
+                return null;
+            });
+        } catch (PrivilegedActionException e) {
+            if (e.getException() instanceof FileAlreadyExistsException) {
+                throw new IllegalArgumentException("codebook [" + name + "] already exists", e.getException());
+            }
+            throw (IOException) e.getException();
+        }
+    }
+
+    private static final class Samples {
+
+        private final int capacity;
+
+        private float[] x;
+
+        private int d;
+
+        private int n;
+
+        Samples(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(float[] vector) {
+            if (vector == null || vector.length == 0) {
+                return;
+            }
+            if (x == null) {
+                d = vector.length;
+                x = new float[Math.min(capacity, 1024) * d];
+            } else if (vector.length != d) {
+                throw new IllegalArgumentException("expected vectors of dimension [" + d + "] but got ["
+                        + vector.length + "]");
+            }
+            if ((n + 1) * d > x.length) {
+                x = Arrays.copyOf(x, Math.min(capacity, n * 2) * d);
+            }
+            System.arraycopy(vector, 0, x, n * d, d);
+            n++;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.analysis;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.ann.Codebook;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.elasticsearch.test.IndexSettingsModule;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class QuantizerRegistryTests extends LuceneTestCase {
+
+    private static final Settings ANALYZER_SETTINGS = Settings.builder()
+            .put("d", 2)
+            .put("m", 1)
+            .put("ksub", 2)
+            .put("coarseCentroids", "0,0,1,1")
+            .put("pqCentroids", "0,0,0.5,0.5")
+            .build();
+
+    public void testReleaseOnIndexRemoved01() {
+        QuantizerRegistry registry = new QuantizerRegistry();
+        IndexSettings first = IndexSettingsModule.newIndexSettings("first", Settings.EMPTY);
+        IndexSettings second = IndexSettingsModule.newIndexSettings("second", Settings.EMPTY);
+        IvfpqAnalyzer a = new IvfpqAnalyzerProvider(first, null, "a", ANALYZER_SETTINGS, registry).get();
+        IvfpqAnalyzer b = new IvfpqAnalyzerProvider(second, null, "b", ANALYZER_SETTINGS, registry).get();
+        assertSame(a.getCoarseQuantizer(), b.getCoarseQuantizer());
+        assertSame(a.getProductQuantizer(), b.getProductQuantizer());
+        assertEquals(1, registry.stats().getCount());
+        assertEquals(2, registry.stats().getReferences());
+
+        registry.afterIndexRemoved(first.getIndex(), first, IndexRemovalReason.DELETED);
+        assertEquals(1, registry.stats().getCount());
+        assertEquals(1, registry.stats().getReferences());
+
+        registry.afterIndexRemoved(second.getIndex(), second, IndexRemovalReason.CLOSED);
+        assertEquals(0, registry.stats().getCount());
+        assertEquals(0, registry.stats().getReferences());
+        assertEquals(0, registry.stats().getMemorySizeInBytes());
+    }
+
+    public void testReleaseOnce01() {
+        QuantizerRegistry registry = new QuantizerRegistry();
+        IndexSettings first = IndexSettingsModule.newIndexSettings("first", Settings.EMPTY);
+        IndexSettings second = IndexSettingsModule.newIndexSettings("second", Settings.EMPTY);
+        IvfpqAnalyzer a = new IvfpqAnalyzerProvider(first, null, "a", ANALYZER_SETTINGS, registry).get();
+        new IvfpqAnalyzerProvider(second, null, "b", ANALYZER_SETTINGS, registry).get();
+        // closing the analyzer and removing its index release the same reference
+        a.close();
+        assertEquals(1, registry.stats().getReferences());
+        registry.afterIndexRemoved(first.getIndex(), first, IndexRemovalReason.DELETED);
+        assertEquals(1, registry.stats().getReferences());
+        assertEquals(1, registry.stats().getCount());
+    }
+
+    public void testDifferentSettings01() {
+        QuantizerRegistry registry = new QuantizerRegistry();
+        IndexSettings indexSettings = IndexSettingsModule.newIndexSettings("index", Settings.EMPTY);
+        IvfpqAnalyzer l2 = new IvfpqAnalyzerProvider(indexSettings, null, "l2", ANALYZER_SETTINGS, registry).get();
+        IvfpqAnalyzer ip = new IvfpqAnalyzerProvider(indexSettings, null, "ip", Settings.builder()
+                .put(ANALYZER_SETTINGS).put("metric", "inner_product").build(), registry).get();
+        assertNotSame(l2.getCoarseQuantizer(), ip.getCoarseQuantizer());
+        assertEquals(2, registry.stats().getCount());
+        registry.afterIndexRemoved(indexSettings.getIndex(), indexSettings, IndexRemovalReason.DELETED);
+        assertEquals(0, registry.stats().getCount());
+        assertEquals(0, registry.stats().getReferences());
+    }
+
+    public void testChecksumCollision01() {
+        // birthday search for two coarse centroid sets whose codebooks share their CRC32
+        Random random = random();
+        float[] pqCentroids = {0, 0, 0.5F, 0.5F};
+        Map<Long, float[]> byChecksum = new HashMap<>();
+        float[] first;
+        float[] second;
+        while (true) {
+            float[] coarseCentroids = new float[4];
+            for (int i = 0; i < coarseCentroids.length; ++i) {
+                coarseCentroids[i] = random.nextFloat();
+            }
+            long checksum = new Codebook(2, 1, 2, coarseCentroids, pqCentroids).getChecksum();
+            float[] previous = byChecksum.put(checksum, coarseCentroids);
+            if (previous != null && !Arrays.equals(previous, coarseCentroids)) {
+                first = previous;
+                second = coarseCentroids;
+                break;
+            }
+        }
+        QuantizerRegistry registry = new QuantizerRegistry();
+        IndexSettings indexSettings = IndexSettingsModule.newIndexSettings("index", Settings.EMPTY);
+        IvfpqAnalyzer a = new IvfpqAnalyzerProvider(indexSettings, null, "a", codebookSettings(first), registry).get();
+        IvfpqAnalyzer b = new IvfpqAnalyzerProvider(indexSettings, null, "b", codebookSettings(second), registry)
+                .get();
+        assertNotSame(a.getCoarseQuantizer(), b.getCoarseQuantizer());
+        assertEquals(2, registry.stats().getCount());
+    }
+
+    private static Settings codebookSettings(float[] coarseCentroids) {
+        StringBuilder csv = new StringBuilder();
+        for (float value : coarseCentroids) {
+            if (csv.length() > 0) {
+                csv.append(',');
+            }
+            csv.append(value);
+        }
+        return Settings.builder().put(ANALYZER_SETTINGS).put("coarseCentroids", csv.toString()).build();
+    }
+}
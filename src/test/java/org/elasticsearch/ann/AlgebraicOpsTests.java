@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+public class AlgebraicOpsTests extends LuceneTestCase {
+
+    public void testL2distance01() {
+        float[] x = new float[]{9, 1, 2, 3, 4, 5, 6};
+        float[] y = new float[]{0, 1, 3, 5, 7, 9, 0};
+        assertEquals(1 + 1 + 0 + 1 + 4 + 9, AlgebraicOps.l2distance(x, 1, y, 0, 6), Float.MIN_NORMAL);
+        assertEquals(81 + 0 + 1 + 4 + 9, AlgebraicOps.l2distance(x, 0, y, 0, 5), Float.MIN_NORMAL);
+        assertEquals(0, AlgebraicOps.l2distance(x, 1, y, 1, 1), Float.MIN_NORMAL);
+    }
+
+    public void testDot01() {
+        float[] x = new float[]{9, 1, 2, 3, 4, 5, 6};
+        float[] y = new float[]{1, 1, 1, 1, 1, 2};
+        assertEquals(1 + 2 + 3 + 4 + 5 + 12, AlgebraicOps.dot(x, 1, y, 0, 6), Float.MIN_NORMAL);
+        assertEquals(9 + 1 + 2, AlgebraicOps.dot(x, 0, y, 0, 3), Float.MIN_NORMAL);
+    }
+
+    public void testFindNearest01() {
+        float[] x = new float[]{5, 0.9F, 1.2F};
+        float[] y = new float[]{0, 0, 1, 1, 2, 2};
+        assertEquals(1, AlgebraicOps.findNearest(x, 1, y, 0, 3, 2));
+        assertEquals(0, AlgebraicOps.findNearest(x, 1, y, 2, 2, 2));
+        assertEquals(1, AlgebraicOps.findNearest(new float[]{0.9F, 1.2F}, y, 3, 2));
+    }
+
+    public void testMultiply01() {
+        float[] x = new float[]{1, 2, 3, 4, 5, 6};
+        float[] y = new float[]{1, 0, 2, 0, 1, 3, 1, 1, 0, 2, 0, 1, 1, 0, 1};
+        float[] z = new float[]{-1, -1, -1, -1, -1, -1, -1, -1, -1, -1};
+        AlgebraicOps.multiply(x, y, z, 2, 5, 3);
+        assertArrayEquals(new float[]{7, 5, 7, 0, 8, 19, 11, 19, 0, 20}, z, Float.MIN_NORMAL);
+    }
+
+    public void testNormalize01() {
+        float[] x = new float[]{3, 4, 0, 0, 0, 2};
+        AlgebraicOps.normalize(x, 3, 2);
+        assertArrayEquals(new float[]{0.6F, 0.8F, 0, 0, 0, 1}, x, 1e-6F);
+    }
+
+    public void testSortableFloatBits01() {
+        float[] values = new float[]{Float.NEGATIVE_INFINITY, -2, -0.5F, 0, 0.5F, 2, Float.POSITIVE_INFINITY};
+        for (int i = 1; i < values.length; ++i) {
+            int previous = AlgebraicOps.sortableFloatBits(Float.floatToIntBits(values[i - 1]));
+            int current = AlgebraicOps.sortableFloatBits(Float.floatToIntBits(values[i]));
+            assertTrue(previous < current);
+            assertEquals(values[i], Float.intBitsToFloat(AlgebraicOps.sortableFloatBits(current)), 0);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.nio.CharBuffer;
+import java.util.Base64;
+
+public class ArrayUtilsTests extends LuceneTestCase {
+
+    public void testParseFloatArrayCsv01() {
+        assertArrayEquals(new float[]{0.5F, -1, 2e-3F},
+                ArrayUtils.parseFloatArrayCsv("0.5, -1,2e-3"), Float.MIN_NORMAL);
+        assertArrayEquals(new float[]{}, ArrayUtils.parseFloatArrayCsv(""), Float.MIN_NORMAL);
+    }
+
+    public void testParseFloatArray01() {
+        float[] floats = new float[]{0.25F, -3, 1e10F};
+        String base64 = Base64.getEncoder().encodeToString(ArrayUtils.encodeFloatArray(floats));
+        assertArrayEquals(floats, ArrayUtils.parseFloatArray(base64), Float.MIN_NORMAL);
+        assertArrayEquals(floats, ArrayUtils.parseFloatArray("0.25,-3,1e10"), Float.MIN_NORMAL);
+        assertArrayEquals(new float[]{0.5F}, ArrayUtils.parseFloatArray("0.5"), Float.MIN_NORMAL);
+    }
+
+    public void testParseFloatArray02() {
+        // valid base64 of 12 bytes as well, but a number wins
+        assertArrayEquals(new float[]{1234567812345678F}, ArrayUtils.parseFloatArray("1234567812345678"), 0F);
+        assertArrayEquals(new float[]{1e10F}, ArrayUtils.parseFloatArray(" 1e10 "), 0F);
+        // base64 strings that aren't numbers still decode
+        float[] floats = new float[]{1, 2, 3};
+        for (int i = 0; i < 100; ++i) {
+            floats[random().nextInt(floats.length)] = random().nextFloat();
+            String base64 = Base64.getEncoder().encodeToString(ArrayUtils.encodeFloatArray(floats));
+            assertArrayEquals(base64, floats, ArrayUtils.parseFloatArray(base64), 0F);
+        }
+        expectThrows(NumberFormatException.class, () -> ArrayUtils.parseFloatArray("a1"));
+    }
+
+    public void testEncodeFloatArray01() {
+        float[] floats = new float[]{1, -0.5F, Float.MAX_VALUE};
+        byte[] bytes = ArrayUtils.encodeFloatArray(floats);
+        assertEquals(0, bytes[0]);
+        assertEquals((byte) 0x3f, bytes[3]);
+        float[] decoded = new float[floats.length];
+        ArrayUtils.decodeFloatArray(bytes, 0, bytes.length, decoded);
+        assertArrayEquals(floats, decoded, Float.MIN_NORMAL);
+    }
+
+    public void testParseFloatArrayCsv02() {
+        float[] floats = new float[3];
+        assertEquals(4, ArrayUtils.parseFloatArrayCsv(CharBuffer.wrap("0.5, -1,2e-3,4".toCharArray()), floats));
+        assertArrayEquals(new float[]{0.5F, -1, 2e-3F}, floats, Float.MIN_NORMAL);
+        assertEquals(0, ArrayUtils.parseFloatArrayCsv("", floats));
+        expectThrows(NumberFormatException.class, () -> ArrayUtils.parseFloatArrayCsv("1,,2", floats));
+    }
+
+    public void testParseFloat01() {
+        for (String text : new String[]{"0", "-0", "1.", ".5", "+3", " 7.25 ", "1E-5", "1f", "NaN", "-Infinity",
+                "0x1p3", "1e-40", "3.5e38", "123456789012345678901234567890", "0.018046028912067413"}) {
+            assertEquals(text, Float.floatToIntBits(Float.parseFloat(text)),
+                    Float.floatToIntBits(ArrayUtils.parseFloat(text, 0, text.length())));
+        }
+        for (int i = 0; i < 10000; ++i) {
+            String text = Double.toString((random().nextDouble() - 0.5) * Math.pow(10, random().nextInt(40) - 20));
+            assertEquals(text, Float.floatToIntBits(Float.parseFloat(text)),
+                    Float.floatToIntBits(ArrayUtils.parseFloat(text, 0, text.length())));
+        }
+        expectThrows(NumberFormatException.class, () -> ArrayUtils.parseFloat("1e", 0, 2));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CodebookTests extends LuceneTestCase {
+
+    public void testReadWrite01() throws IOException {
+        float[] coarseCentroids = new float[]{0, 0.5F, 0.2F, 0.5F, 1, 1.1F};
+        float[] pqCentroids = new float[]{0, 0, 0, 0.25F, 0.25F, 0.25F};
+        Codebook codebook = new Codebook(3, 3, 2, coarseCentroids, pqCentroids);
+        Path path = createTempDir().resolve("codebook");
+        codebook.write(path);
+        Codebook read = Codebook.read(path);
+        assertEquals(3, read.getDimension());
+        assertEquals(3, read.getM());
+        assertEquals(2, read.getKsub());
+        assertEquals(codebook.getChecksum(), read.getChecksum());
+        assertEquals(codebook.getDigest(), read.getDigest());
+        assertNull(read.getRotation());
+        assertArrayEquals(coarseCentroids, read.getCoarseCentroids(), Float.MIN_NORMAL);
+        assertArrayEquals(pqCentroids, read.getPqCentroids(), Float.MIN_NORMAL);
+    }
+
+    public void testChecksumMismatch01() throws IOException {
+        Codebook codebook = new Codebook(2, 1, 1, new float[]{1, 2}, new float[]{3, 4});
+        Path path = createTempDir().resolve("codebook");
+        codebook.write(path);
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length - 9] ^= 1;
+        Files.write(path, bytes);
+        expectThrows(IOException.class, () -> Codebook.read(path));
+    }
+
+    public void testReadWriteRotation01() throws IOException {
+        float[] rotation = new float[]{0, 1, 1, 0};
+        float[] coarseCentroids = new float[]{0, 0.5F, 0.2F, 0.5F};
+        float[] pqCentroids = new float[]{0, 0.25F, 0.25F, 0};
+        Codebook codebook = new Codebook(2, 1, 2, rotation, coarseCentroids, pqCentroids);
+        assertNotEquals(new Codebook(2, 1, 2, coarseCentroids, pqCentroids).getChecksum(), codebook.getChecksum());
+        Path path = createTempDir().resolve("codebook");
+        codebook.write(path);
+        Codebook read = Codebook.read(path);
+        assertEquals(codebook.getChecksum(), read.getChecksum());
+        assertArrayEquals(rotation, read.getRotation(), Float.MIN_NORMAL);
+        assertArrayEquals(coarseCentroids, read.getCoarseCentroids(), Float.MIN_NORMAL);
+        assertArrayEquals(pqCentroids, read.getPqCentroids(), Float.MIN_NORMAL);
+    }
+}
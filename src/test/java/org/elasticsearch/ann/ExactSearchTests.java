@@ -15,6 +15,9 @@ package org.elasticsearch.ann;
 
 import org.apache.lucene.util.LuceneTestCase;
 
+import java.util.Arrays;
+import java.util.Random;
+
 public class ExactSearchTests  extends LuceneTestCase {
 
     public void testGetResidual01() {
@@ -43,4 +46,69 @@ public class ExactSearchTests  extends LuceneTestCase {
         int[] nearest = exactSearch.searchNearest(new float[]{1.3F, 1, 0.9F}, 2);
         assertArrayEquals(new int[]{1, 2}, nearest);
     }
+
+    public void testSearchNearest03() {
+        Random random = random();
+        int d = 4;
+        int nlist = 200;
+        float[] centroids = new float[nlist * d];
+        for (int i = 0; i < centroids.length; ++i) {
+            centroids[i] = random.nextInt(8);
+        }
+        ExactSearch exactSearch = new ExactSearch(d, centroids);
+        float[] feature = new float[]{random.nextInt(8), random.nextInt(8), random.nextInt(8), random.nextInt(8)};
+        long[] expected = new long[nlist];
+        for (int i = 0; i < nlist; ++i) {
+            float distance = 0;
+            for (int j = 0; j < d; ++j) {
+                final float diff = centroids[i * d + j] - feature[j];
+                distance += diff * diff;
+            }
+            expected[i] = ((long) Float.floatToIntBits(distance) << 32) | i;
+        }
+        Arrays.sort(expected);
+        for (int k : new int[]{1, 7, 64, nlist, nlist + 10}) {
+            int[] nearest = exactSearch.searchNearest(feature, k);
+            assertEquals(Math.min(k, nlist), nearest.length);
+            for (int i = 0; i < nearest.length; ++i) {
+                assertEquals((int) expected[i], nearest[i]);
+            }
+        }
+    }
+
+    public void testSearchNearestBatch01() {
+        Random random = random();
+        int d = 5;
+        int nlist = 300;
+        int n = 40;
+        // small integers keep every distance exact, so the batch must agree with single searches
+        float[] centroids = new float[nlist * d];
+        for (int i = 0; i < centroids.length; ++i) {
+            centroids[i] = random.nextInt(8);
+        }
+        float[] x = new float[n * d];
+        for (int i = 0; i < x.length; ++i) {
+            x[i] = random.nextInt(8);
+        }
+        ExactSearch exactSearch = new ExactSearch(d, centroids);
+        for (int k : new int[]{1, 9, nlist + 1}) {
+            int[][] nearest = exactSearch.searchNearest(x, n, k);
+            assertEquals(n, nearest.length);
+            for (int i = 0; i < n; ++i) {
+                float[] feature = Arrays.copyOfRange(x, i * d, (i + 1) * d);
+                assertArrayEquals(exactSearch.searchNearest(feature, k), nearest[i]);
+            }
+        }
+    }
+
+    public void testSearchNearestInnerProduct01() {
+        float[] centroids = new float[]{1, 0, 0, 2, -1, -1};
+        ExactSearch exactSearch = new ExactSearch(2, centroids, Metric.INNER_PRODUCT);
+        float[] feature = new float[]{1, 1};
+        // the largest inner product wins even though centroid 0 is nearer by L2
+        assertEquals(1, exactSearch.searchNearest(feature));
+        assertArrayEquals(new int[]{1, 0, 2}, exactSearch.searchNearest(feature, 3));
+        assertArrayEquals(new int[][]{{1, 0}, {2, 1}}, exactSearch.searchNearest(new float[]{1, 1, -1, 0}, 2, 2));
+        assertEquals(-2, exactSearch.distance(1, feature), Float.MIN_NORMAL);
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class HnswSearchTests extends LuceneTestCase {
+
+    public void testSearchNearest01() {
+        float[] centroids = new float[]{0, 0, 0, 1, 1, 1, 2, 2, 2};
+        HnswSearch hnswSearch = new HnswSearch(3, centroids, 2, 10, 10, 0);
+        assertEquals(3, hnswSearch.getNlist());
+        assertEquals(0, hnswSearch.searchNearest(new float[]{0.1F, 0.3F, 0.5F}));
+        assertEquals(1, hnswSearch.searchNearest(new float[]{1.1F, 0.5F, 0.5F}));
+        assertArrayEquals(new int[]{1, 2}, hnswSearch.searchNearest(new float[]{1.3F, 1, 0.9F}, 2));
+        assertArrayEquals(new int[]{2, 1, 0}, hnswSearch.searchNearest(new float[]{3, 3, 3}, 5));
+    }
+
+    public void testSearchNearest02() {
+        Random random = random();
+        int d = 8;
+        int nlist = 2000;
+        float[] centroids = new float[nlist * d];
+        for (int i = 0; i < centroids.length; ++i) {
+            centroids[i] = random.nextFloat();
+        }
+        HnswSearch hnswSearch = new HnswSearch(d, centroids, 16, 100, 64, random.nextLong());
+        ExactSearch exactSearch = new ExactSearch(d, centroids);
+        int found = 0;
+        int total = 0;
+        for (int i = 0; i < 50; ++i) {
+            float[] feature = new float[d];
+            for (int j = 0; j < d; ++j) {
+                feature[j] = random.nextFloat();
+            }
+            Set<Integer> expected = new HashSet<>();
+            for (int nearest : exactSearch.searchNearest(feature, 10)) {
+                expected.add(nearest);
+            }
+            for (int nearest : hnswSearch.searchNearest(feature, 10)) {
+                if (expected.contains(nearest)) {
+                    found++;
+                }
+            }
+            total += expected.size();
+        }
+        assertTrue("recall " + found + "/" + total, found >= total * 0.9);
+    }
+
+    public void testEmpty01() {
+        HnswSearch hnswSearch = new HnswSearch(2, new float[0], 4, 10, 10, 0);
+        assertEquals(-1, hnswSearch.searchNearest(new float[]{1, 2}));
+        assertEquals(0, hnswSearch.searchNearest(new float[]{1, 2}, 3).length);
+    }
+}
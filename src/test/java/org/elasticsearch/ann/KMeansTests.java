@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.ann;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class KMeansTests extends LuceneTestCase {
+
+    public void testTrain01() {
+        float[] x = new float[]{0, 0, 0.1F, 0, 0, 0.1F, 10, 10, 10.1F, 10, 10, 10.1F};
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            float[] centroids = new KMeans(2, 2, 5, 0, pool).train(x, 6);
+            float[] sorted = centroids[0] < centroids[2] ? centroids
+                    : new float[]{centroids[2], centroids[3], centroids[0], centroids[1]};
+            assertArrayEquals(new float[]{0.0333F, 0.0333F, 10.0333F, 10.0333F}, sorted, 0.001F);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testAssign01() {
+        float[] x = new float[]{0, 0, 0.9F, 1, 3, 3, -1, 0};
+        float[] centroids = new float[]{0, 0, 1, 1, 3, 3};
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            int[] assignments = new int[4];
+            new KMeans(2, 3, 1, 0, pool).assign(x, 4, centroids, assignments);
+            assertArrayEquals(new int[]{0, 1, 2, 0}, assignments);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testTrainTooFewVectors01() {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            expectThrows(IllegalArgumentException.class, () -> new KMeans(2, 3, 1, 0, pool).train(new float[4], 2));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testIvfpqTrainer01() {
+        float[] x = new float[64 * 4];
+        for (int i = 0; i < 64; ++i) {
+            Arrays.fill(x, i * 4, i * 4 + 4, i % 2 == 0 ? i : -i);
+        }
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Codebook codebook = new IvfpqTrainer(4, 4, 2, 8, 5, 0).train(x, 64, pool);
+            assertEquals(4, codebook.getDimension());
+            assertEquals(2, codebook.getM());
+            assertEquals(8, codebook.getKsub());
+            assertEquals(16, codebook.getCoarseCentroids().length);
+            assertEquals(32, codebook.getPqCentroids().length);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -59,4 +59,124 @@ public class ProductQuantizerTests extends LuceneTestCase {
         short[] codes = pq.getCodes(feature);
         assertArrayEquals(new short[]{1, 0}, codes);
     }
+
+    public void testGetCodeSize01() {
+        assertEquals(2, new ProductQuantizer(6, 3, 16, new float[0]).getCodeSize());
+        assertEquals(3, new ProductQuantizer(6, 3, 256, new float[0]).getCodeSize());
+        assertEquals(6, new ProductQuantizer(6, 3, 1024, new float[0]).getCodeSize());
+    }
+
+    public void testGetDistanceEncoded01() {
+        int m = 3;
+        for (int ksub : new int[]{2, 16, 17, 256, 1024}) {
+            ProductQuantizer pq = new ProductQuantizer(m, m, ksub, new float[0]);
+            float[] table = new float[m * ksub];
+            for (int i = 0; i < table.length; ++i) {
+                table[i] = random().nextFloat();
+            }
+            short[] codes = new short[m];
+            for (int i = 0; i < m; ++i) {
+                codes[i] = (short) random().nextInt(ksub);
+            }
+            byte[] bytes = new byte[pq.getCodeSize() + 1];
+            pq.encode(codes, bytes, 1);
+            assertEquals(pq.getDistance(table, codes),
+                    pq.getDistance(table, bytes, 1, pq.getCodeSize()), Float.MIN_NORMAL);
+        }
+    }
+
+    public void testGetDistanceEncoded02() throws Exception {
+        int m = 2;
+        int ksub = 16;
+        ProductQuantizer pq = new ProductQuantizer(m, m, ksub, new float[0]);
+        float[] table = new float[m * ksub];
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = i;
+        }
+        short[] codes = new short[]{3, 7};
+        byte[] legacy = ArrayUtils.encodeShortArray(codes);
+        assertEquals(pq.getDistance(table, codes),
+                pq.getDistance(table, legacy, 0, legacy.length), Float.MIN_NORMAL);
+    }
+
+    public void testQuantize01() {
+        final int d = 8;
+        final int m = 4;
+        for (int ksub : new int[]{16, 256, 1024}) {
+            float[] pqCentroids = new float[ksub * d];
+            for (int i = 0; i < pqCentroids.length; ++i) {
+                pqCentroids[i] = random().nextFloat();
+            }
+            ProductQuantizer pq = new ProductQuantizer(d, m, ksub, pqCentroids);
+            float[] feature = new float[d];
+            for (int i = 0; i < d; ++i) {
+                feature[i] = random().nextFloat();
+            }
+            byte[] bytes = new byte[pq.getCodeSize() + 1];
+            pq.quantize(feature, bytes, 1);
+            byte[] expected = pq.encode(pq.getCodes(feature));
+            for (int i = 0; i < expected.length; ++i) {
+                assertEquals(expected[i], bytes[i + 1]);
+            }
+        }
+    }
+
+    public void testGetInnerProductTable01() {
+        int d = 4;
+        int m = 2;
+        int ksub = 2;
+        float[] pqCentroids = new float[]{0, 0, 0.25F, 0, 0, 0.25F, 0.25F, 0.25F};
+        ProductQuantizer pq = new ProductQuantizer(d, m, ksub, pqCentroids);
+        float[] feature = new float[]{1, 2, 3, 4};
+        float[] table = new float[pq.getCodeTableSize()];
+        pq.getInnerProductTable(feature, table);
+        assertArrayEquals(new float[]{0, -0.25F, -1, -1.75F}, table, Float.MIN_NORMAL);
+        // codes {1, 1} reconstruct the residual (0.25, 0, 0.25, 0.25)
+        assertEquals(-0.25F - 1.75F, pq.getDistance(table, new short[]{1, 1}), Float.MIN_NORMAL);
+    }
+
+    public void testGetSumOrder01() {
+        int m = 3;
+        int ksub = 2;
+        ProductQuantizer pq = new ProductQuantizer(m, m, ksub, new float[0]);
+        float[] table = new float[]{1, 1.5F, 0, 4, -1, 0};
+        int[] order = new int[m];
+        pq.getSumOrder(table, order);
+        assertArrayEquals(new int[]{1, 2, 0}, order);
+        float[] bounds = new float[m + 1];
+        pq.getLowerBounds(table, order, bounds);
+        assertArrayEquals(new float[]{0, 0, 1, 0}, bounds, Float.MIN_NORMAL);
+    }
+
+    public void testGetDistanceThreshold01() {
+        int m = 5;
+        for (int ksub : new int[]{16, 256, 1024}) {
+            ProductQuantizer pq = new ProductQuantizer(m, m, ksub, new float[0]);
+            float[] table = new float[m * ksub];
+            for (int i = 0; i < table.length; ++i) {
+                table[i] = random().nextFloat() * (i / ksub + 1) - 0.5F;
+            }
+            int[] order = new int[m];
+            pq.getSumOrder(table, order);
+            float[] bounds = new float[m + 1];
+            pq.getLowerBounds(table, order, bounds);
+            for (int n = 0; n < 100; ++n) {
+                short[] codes = new short[m];
+                for (int i = 0; i < m; ++i) {
+                    codes[i] = (short) random().nextInt(ksub);
+                }
+                byte[] bytes = pq.encode(codes);
+                float expected = pq.getDistance(table, codes);
+                assertTrue(bounds[0] <= expected + 1e-5F);
+                assertEquals(expected, pq.getDistance(table, bytes, 0, bytes.length, order, bounds,
+                        Float.POSITIVE_INFINITY), 1e-5F);
+                float threshold = bounds[0] + random().nextFloat() * (expected - bounds[0]);
+                float distance = pq.getDistance(table, bytes, 0, bytes.length, order, bounds, threshold);
+                if (expected > threshold + 1e-5F) {
+                    assertTrue(distance > threshold);
+                    assertTrue(distance <= expected + 1e-5F);
+                }
+            }
+        }
+    }
 }
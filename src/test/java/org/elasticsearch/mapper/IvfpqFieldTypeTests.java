@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.mapper;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.mapper.IvfpqFieldMapper.CodesStorage;
+import org.elasticsearch.mapper.IvfpqFieldMapper.IvfpqFieldType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class IvfpqFieldTypeTests extends LuceneTestCase {
+
+    private static IvfpqFieldType fieldType(CodesStorage codesStorage) {
+        IvfpqFieldType fieldType = new IvfpqFieldType();
+        fieldType.setName("vector");
+        fieldType.setCodesStorage(codesStorage);
+        return fieldType;
+    }
+
+    private static List<String> conflicts(CodesStorage from, CodesStorage to) {
+        List<String> conflicts = new ArrayList<>();
+        fieldType(from).checkCompatibility(fieldType(to), conflicts, true);
+        return conflicts;
+    }
+
+    public void testCodesStorageCompatibility01() {
+        for (CodesStorage from : CodesStorage.values()) {
+            for (CodesStorage to : CodesStorage.values()) {
+                List<String> conflicts = conflicts(from, to);
+                if (from == to || (from != CodesStorage.POSTINGS && to != CodesStorage.POSTINGS)) {
+                    // stored fields and doc values can be switched, the search side reads both
+                    assertTrue(from + " -> " + to + ": " + conflicts, conflicts.isEmpty());
+                } else {
+                    assertEquals(from + " -> " + to + ": " + conflicts, 1, conflicts.size());
+                    assertTrue(conflicts.get(0).contains(IvfpqFieldMapper.CODES_STORAGE));
+                }
+            }
+        }
+    }
+}
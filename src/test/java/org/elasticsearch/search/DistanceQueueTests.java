@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.util.Arrays;
+
+public class DistanceQueueTests extends LuceneTestCase {
+
+    public void testKeepsSmallest01() {
+        final int n = atLeast(200);
+        final int capacity = random().nextInt(20) + 1;
+        float[] distances = new float[n];
+        DistanceQueue queue = new DistanceQueue(capacity);
+        for (int doc = 0; doc < n; ++doc) {
+            distances[doc] = random().nextFloat();
+            queue.insert(doc, distances[doc]);
+            assertTrue(queue.size() <= capacity);
+        }
+        assertEquals(Math.min(n, capacity), queue.size());
+        float[] sorted = distances.clone();
+        Arrays.sort(sorted);
+        float[] retained = new float[queue.size()];
+        for (int i = 0; i < retained.length; ++i) {
+            retained[i] = queue.distance(i);
+            assertEquals(distances[queue.doc(i)], queue.distance(i), 0f);
+        }
+        Arrays.sort(retained);
+        assertArrayEquals(Arrays.copyOf(sorted, retained.length), retained, 0f);
+        assertEquals(retained[retained.length - 1], queue.threshold(), 0f);
+    }
+
+    public void testThreshold01() {
+        DistanceQueue queue = new DistanceQueue(2);
+        assertFalse(queue.isFull());
+        assertEquals(Float.POSITIVE_INFINITY, queue.threshold(), 0f);
+        assertTrue(queue.insert(0, 3));
+        assertEquals(Float.POSITIVE_INFINITY, queue.threshold(), 0f);
+        assertTrue(queue.insert(1, 1));
+        assertTrue(queue.isFull());
+        assertEquals(3, queue.threshold(), 0f);
+        assertFalse(queue.insert(2, 4));
+        assertTrue(queue.insert(3, 2));
+        assertEquals(2, queue.threshold(), 0f);
+    }
+
+    public void testTies01() {
+        DistanceQueue queue = new DistanceQueue(2);
+        assertTrue(queue.insert(5, 1));
+        assertTrue(queue.insert(7, 1));
+        // an equal distance only replaces a larger doc id
+        assertFalse(queue.insert(9, 1));
+        assertTrue(queue.insert(3, 1));
+        int[] docs = new int[]{queue.doc(0), queue.doc(1)};
+        Arrays.sort(docs);
+        assertArrayEquals(new int[]{3, 5}, docs);
+        assertEquals(5, queue.doc(0));
+    }
+
+    public void testZeroCapacity01() {
+        DistanceQueue queue = new DistanceQueue(0);
+        assertTrue(queue.isFull());
+        assertFalse(queue.insert(0, 1));
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class DocAndScoreQueryTests extends LuceneTestCase {
+
+    private Directory directory;
+
+    private IndexReader reader;
+
+    private IndexSearcher searcher;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = newDirectory();
+        // small segments without merges, so that hits span several leaves
+        RandomIndexWriter w = new RandomIndexWriter(random(), directory, newIndexWriterConfig()
+                .setMergePolicy(NoMergePolicy.INSTANCE));
+        final int n = atLeast(100);
+        for (int i = 0; i < n; ++i) {
+            Document doc = new Document();
+            doc.add(new StringField("parity", i % 2 == 0 ? "even" : "odd", Field.Store.NO));
+            w.addDocument(doc);
+            if (i % 20 == 19) {
+                w.commit();
+            }
+        }
+        reader = w.getReader();
+        w.close();
+        assertTrue(reader.leaves().size() > 1);
+        searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+        super.tearDown();
+    }
+
+    /**
+     * Picks random doc ids of the reader with distinct random scores, in doc id order.
+     */
+    private TreeMap<Integer, Float> randomHits() {
+        TreeMap<Integer, Float> hits = new TreeMap<>();
+        final int count = 1 + random().nextInt(reader.maxDoc() / 2);
+        while (hits.size() < count) {
+            hits.put(random().nextInt(reader.maxDoc()), (float) hits.size() + random().nextFloat() / 2);
+        }
+        return hits;
+    }
+
+    private Query create(Map<Integer, Float> hits, IndexReader reader) {
+        int[] docs = new int[hits.size()];
+        float[] scores = new float[hits.size()];
+        int i = 0;
+        // in reverse so that create has to sort them
+        for (Map.Entry<Integer, Float> hit : new TreeMap<>(hits).descendingMap().entrySet()) {
+            docs[i] = hit.getKey();
+            scores[i++] = hit.getValue();
+        }
+        return DocAndScoreQuery.create(docs, scores, reader, null);
+    }
+
+    public void testReplay01() throws IOException {
+        TreeMap<Integer, Float> hits = randomHits();
+        TopDocs topDocs = searcher.search(create(hits, reader), reader.maxDoc());
+        assertEquals(hits.size(), topDocs.totalHits);
+        Map<Integer, Float> found = new HashMap<>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            found.put(scoreDoc.doc, scoreDoc.score);
+        }
+        assertEquals(hits, found);
+    }
+
+    public void testAdvance01() throws IOException {
+        TreeMap<Integer, Float> hits = randomHits();
+        Weight weight = searcher.createWeight(searcher.rewrite(create(hits, reader)), false, 1f);
+        for (LeafReaderContext context : reader.leaves()) {
+            final int docBase = context.docBase;
+            final int maxDoc = context.reader().maxDoc();
+            for (int target = 0; target < maxDoc; target += 1 + random().nextInt(5)) {
+                Scorer scorer = weight.scorer(context);
+                Integer expected = hits.ceilingKey(docBase + target);
+                if (expected == null || expected >= docBase + maxDoc) {
+                    // no hit in this leaf from the target on
+                    if (scorer != null) {
+                        assertEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.iterator().advance(target));
+                    }
+                    continue;
+                }
+                assertNotNull(scorer);
+                DocIdSetIterator iterator = scorer.iterator();
+                assertEquals(expected - docBase, iterator.advance(target));
+                Integer next = hits.higherKey(expected);
+                assertEquals(next == null || next >= docBase + maxDoc ? DocIdSetIterator.NO_MORE_DOCS
+                        : next - docBase, iterator.nextDoc());
+            }
+        }
+    }
+
+    /**
+     * A conjunction only asks for the scores of the documents both clauses match, so that the
+     * values are looked up with gaps between doc ids.
+     */
+    public void testAdvanceExact01() throws IOException {
+        TreeMap<Integer, Float> hits = randomHits();
+        Query query = new BooleanQuery.Builder()
+                .add(create(hits, reader), BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term("parity", "even")), BooleanClause.Occur.FILTER)
+                .build();
+        TopDocs topDocs = searcher.search(query, reader.maxDoc());
+        Map<Integer, Float> expected = new HashMap<>();
+        for (Map.Entry<Integer, Float> hit : hits.entrySet()) {
+            if (hit.getKey() % 2 == 0) {
+                expected.put(hit.getKey(), hit.getValue());
+            }
+        }
+        Map<Integer, Float> found = new HashMap<>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            found.put(scoreDoc.doc, scoreDoc.score);
+        }
+        assertEquals(expected, found);
+    }
+
+    public void testEmpty01() throws IOException {
+        Query query = DocAndScoreQuery.create(new int[0], new float[0], reader, null);
+        assertEquals(0, searcher.search(query, 10).totalHits);
+    }
+
+    public void testReaderIdentity01() throws IOException {
+        TreeMap<Integer, Float> hits = randomHits();
+        Query query = create(hits, reader);
+        assertEquals(query, create(hits, reader));
+        assertEquals(query.hashCode(), create(hits, reader).hashCode());
+        Weight weight = searcher.createWeight(searcher.rewrite(query), false, 1f);
+        assertTrue(weight.isCacheable(reader.leaves().get(0)));
+
+        // the same doc ids mean other documents in another reader
+        try (Directory otherDirectory = newDirectory()) {
+            RandomIndexWriter w = new RandomIndexWriter(random(), otherDirectory);
+            for (int i = 0; i < reader.maxDoc(); ++i) {
+                w.addDocument(new Document());
+            }
+            try (IndexReader other = w.getReader()) {
+                w.close();
+                assertNotEquals(query, create(hits, other));
+            }
+        }
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.analysis.IvfpqAnalyzer;
+import org.elasticsearch.ann.ArrayUtils;
+import org.elasticsearch.ann.ExactSearch;
+import org.elasticsearch.ann.Metric;
+import org.elasticsearch.ann.ProductQuantizer;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.mapper.IvfpqFieldMapper;
+import org.elasticsearch.mapper.IvfpqFieldMapper.CodesStorage;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches a multi-segment index laid out by {@link IvfpqFieldMapper} with a random codes storage,
+ * and compares the hits with an exhaustive computation of the same approximate distances. The
+ * analyzer may rotate vectors, in which case lists and tables are those of the rotated vectors.
+ */
+public class IvfpqKnnQueryTests extends LuceneTestCase {
+
+    private static final String FIELD = "vector";
+
+    private static final int D = 8;
+
+    private static final int NLIST = 8;
+
+    private static final int M = 4;
+
+    private static final int KSUB = 256;
+
+    private Directory directory;
+
+    private IndexReader reader;
+
+    private IvfpqAnalyzer analyzer;
+
+    private float[][] vectors;
+
+    private int[] lists;
+
+    private byte[][] codes;
+
+    private boolean[] red;
+
+    private boolean[] deleted;
+
+    private CodesStorage codesStorage;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Metric metric = random().nextBoolean() ? Metric.L2 : Metric.INNER_PRODUCT;
+        float[] coarseCentroids = randomVectors(NLIST * D, 4);
+        float[] pqCentroids = randomVectors(M * KSUB * (D / M), 1);
+        // an orthogonal rotation keeps distances, so the exact nearest documents don't change
+        float[] rotation = random().nextBoolean() ? randomRotation(D) : null;
+        analyzer = new IvfpqAnalyzer(new ExactSearch(D, coarseCentroids, metric),
+                new ProductQuantizer(D, M, KSUB, pqCentroids), rotation);
+
+        final int n = atLeast(300);
+        vectors = new float[n][];
+        lists = new int[n];
+        codes = new byte[n][];
+        red = new boolean[n];
+        deleted = new boolean[n];
+        directory = newDirectory();
+        RandomIndexWriter w = new RandomIndexWriter(random(), directory, newIndexWriterConfig()
+                .setMergePolicy(NoMergePolicy.INSTANCE));
+        codesStorage = CodesStorage.values()[random().nextInt(CodesStorage.values().length)];
+        CodesStorage segmentStorage = codesStorage;
+        for (int i = 0; i < n; ++i) {
+            // rotated around one of the centroids, so that the lists differ in size
+            final int centroid = random().nextInt(NLIST);
+            float[] rotated = randomVectors(D, 1);
+            for (int j = 0; j < D; ++j) {
+                rotated[j] += coarseCentroids[centroid * D + j];
+            }
+            vectors[i] = rotation == null ? rotated : unrotate(rotated, rotation);
+            // encoded and stored like the mapper does, which keeps the vector unrotated for re-ranking
+            float[] features = analyzer.vectorBuffer();
+            System.arraycopy(vectors[i], 0, features, 0, D);
+            codes[i] = new byte[analyzer.getProductQuantizer().getCodeSize()];
+            lists[i] = analyzer.encode(features, codes[i], 0);
+            red[i] = random().nextInt(10) == 0;
+            Document doc = new Document();
+            doc.add(new StringField("id", String.valueOf(i), Field.Store.NO));
+            doc.add(new NumericDocValuesField("id", i));
+            doc.add(new StringField("color", red[i] ? "red" : "blue", Field.Store.NO));
+            List<IndexableField> fields = new ArrayList<>();
+            IvfpqFieldMapper.createCodesFields(FIELD, segmentStorage, lists[i], codes[i], fields);
+            fields.forEach(doc::add);
+            doc.add(new BinaryDocValuesField(IvfpqFieldMapper.getVectorField(FIELD),
+                    new BytesRef(ArrayUtils.encodeFloatArray(features))));
+            w.addDocument(doc);
+            if (random().nextInt(50) == 0) {
+                w.commit();
+                // the mapping may switch between stored fields and doc values, not to or from postings
+                if (codesStorage != CodesStorage.POSTINGS && random().nextBoolean()) {
+                    segmentStorage = segmentStorage == CodesStorage.STORED ? CodesStorage.DOC_VALUES
+                            : CodesStorage.STORED;
+                }
+            }
+        }
+        for (int i = 0; i < n; ++i) {
+            if (random().nextInt(20) == 0) {
+                deleted[i] = true;
+                w.deleteDocuments(new Term("id", String.valueOf(i)));
+            }
+        }
+        reader = w.getReader();
+        w.close();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+        super.tearDown();
+    }
+
+    private static float[] randomVectors(int size, float scale) {
+        float[] x = new float[size];
+        for (int i = 0; i < size; ++i) {
+            x[i] = (float) random().nextGaussian() * scale;
+        }
+        return x;
+    }
+
+    /**
+     * Returns a random orthogonal matrix, random rows made orthonormal with Gram-Schmidt.
+     */
+    private static float[] randomRotation(int d) {
+        double[][] rows = new double[d][d];
+        for (int i = 0; i < d; ++i) {
+            for (int j = 0; j < d; ++j) {
+                rows[i][j] = random().nextGaussian();
+            }
+            for (int p = 0; p < i; ++p) {
+                double dot = 0;
+                for (int j = 0; j < d; ++j) {
+                    dot += rows[i][j] * rows[p][j];
+                }
+                for (int j = 0; j < d; ++j) {
+                    rows[i][j] -= dot * rows[p][j];
+                }
+            }
+            double norm = 0;
+            for (int j = 0; j < d; ++j) {
+                norm += rows[i][j] * rows[i][j];
+            }
+            norm = Math.sqrt(norm);
+            for (int j = 0; j < d; ++j) {
+                rows[i][j] /= norm;
+            }
+        }
+        float[] rotation = new float[d * d];
+        for (int i = 0; i < d; ++i) {
+            for (int j = 0; j < d; ++j) {
+                rotation[i * d + j] = (float) rows[i][j];
+            }
+        }
+        return rotation;
+    }
+
+    /**
+     * Returns {@code y R^T}, the vector that the orthogonal {@code R} rotates to {@code y}.
+     */
+    private static float[] unrotate(float[] y, float[] rotation) {
+        final int d = y.length;
+        float[] x = new float[d];
+        for (int k = 0; k < d; ++k) {
+            for (int j = 0; j < d; ++j) {
+                x[k] += y[j] * rotation[k * d + j];
+            }
+        }
+        return x;
+    }
+
+    private Query query(float[] q, int nprobe, int k, int rerank, Query filter, int maxNprobe, int minCandidates,
+                        ParallelScan scan, AnnSearchMetrics metrics, ResultCache resultCache) {
+        return IvfpqQuery.createFieldQuery(FIELD, analyzer, q, nprobe, k, rerank, ScoreMode.DISTANCE, filter,
+                maxNprobe, minCandidates, null, scan, metrics, resultCache);
+    }
+
+    private Query query(float[] q, int nprobe, int k) {
+        return query(q, nprobe, k, 0, null, 0, 0, null, null, null);
+    }
+
+    private Query query(float[] q, int nprobe, int k, ScoreMode scoreMode) {
+        return IvfpqQuery.createFieldQuery(FIELD, analyzer, q, nprobe, k, 0, scoreMode, null, 0, 0, null, null, null,
+                null);
+    }
+
+    /**
+     * Returns the distances of the hits by id.
+     */
+    private Map<Integer, Float> search(Query query, IndexReader reader) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        TopDocs topDocs = searcher.search(query, reader.maxDoc());
+        Map<Integer, Float> hits = new HashMap<>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            hits.put(id(reader, scoreDoc.doc), scoreDoc.score);
+        }
+        return hits;
+    }
+
+    private static int id(IndexReader reader, int doc) throws IOException {
+        LeafReaderContext context = reader.leaves().get(ReaderUtil.subIndex(doc, reader.leaves()));
+        NumericDocValues ids = context.reader().getNumericDocValues("id");
+        assertTrue(ids.advanceExact(doc - context.docBase));
+        return (int) ids.longValue();
+    }
+
+    private Map<Integer, Float> search(Query query) throws IOException {
+        return search(query, reader);
+    }
+
+    /**
+     * The lists that the query probes, the nearest to the rotated query.
+     */
+    private int[] probes(float[] q, int nprobe) {
+        return analyzer.getCoarseQuantizer().searchNearest(analyzer.rotate(q), nprobe);
+    }
+
+    /**
+     * The distance looked up in the tables of the document's list, summed in order.
+     */
+    private float adc(float[] q, int id) {
+        float[] rotated = analyzer.rotate(q);
+        float[] table = analyzer.getCodeTable(lists[id], rotated);
+        return analyzer.getBias(lists[id], rotated)
+                + analyzer.getProductQuantizer().getDistance(table, codes[id], 0, codes[id].length);
+    }
+
+    private float exact(float[] q, int id) {
+        return analyzer.getMetric().distance(q, 0, vectors[id], 0, D);
+    }
+
+    private boolean[] inLists(int[] probes) {
+        boolean[] probed = new boolean[NLIST];
+        for (int probe : probes) {
+            probed[probe] = true;
+        }
+        boolean[] candidates = new boolean[vectors.length];
+        for (int i = 0; i < vectors.length; ++i) {
+            candidates[i] = probed[lists[i]] && !deleted[i];
+        }
+        return candidates;
+    }
+
+    /**
+     * Checks that the hits are {@code k} of the candidates with the smallest distances, with
+     * those distances. Distances may differ in the last bits as the query sums them in another
+     * order, so equal distances may be swapped at the boundary.
+     */
+    private static void assertNearest(Map<Integer, Float> hits, boolean[] candidates, float[] distances, int k) {
+        float[] sorted = new float[distances.length];
+        int count = 0;
+        for (int i = 0; i < distances.length; ++i) {
+            if (candidates[i]) {
+                sorted[count++] = distances[i];
+            }
+        }
+        sorted = Arrays.copyOf(sorted, count);
+        Arrays.sort(sorted);
+        assertEquals(Math.min(k, count), hits.size());
+        if (hits.isEmpty()) {
+            return;
+        }
+        final float kth = sorted[hits.size() - 1];
+        for (Map.Entry<Integer, Float> hit : hits.entrySet()) {
+            final int id = hit.getKey();
+            assertTrue("hit [" + id + "] is no candidate", candidates[id]);
+            final float eps = 1e-4f * (1 + Math.abs(distances[id]));
+            assertEquals(distances[id], hit.getValue(), eps);
+            assertTrue("hit [" + id + "] at [" + distances[id] + "] is farther than [" + kth + "]",
+                    distances[id] <= kth + eps);
+        }
+    }
+
+    private float[] distances(float[] q, boolean exact) {
+        float[] distances = new float[vectors.length];
+        for (int i = 0; i < vectors.length; ++i) {
+            distances[i] = exact ? exact(q, i) : adc(q, i);
+        }
+        return distances;
+    }
+
+    public void testTopKEqualsExhaustiveAdc01() throws IOException {
+        for (LeafReaderContext context : reader.leaves()) {
+            FieldInfo fieldInfo = context.reader().getFieldInfos().fieldInfo(FIELD);
+            // codes are read from payloads exactly when the mapper indexed them as such
+            assertEquals(codesStorage == CodesStorage.POSTINGS, fieldInfo != null && fieldInfo.hasPayloads());
+        }
+        for (int iter = 0; iter < 10; ++iter) {
+            float[] q = randomVectors(D, 4);
+            final int nprobe = 1 + random().nextInt(NLIST);
+            final int k = 1 + random().nextInt(20);
+            Map<Integer, Float> hits = search(query(q, nprobe, k));
+            boolean[] candidates = inLists(probes(q, nprobe));
+            assertNearest(hits, candidates, distances(q, false), k);
+        }
+    }
+
+    /**
+     * Every score mode ranks the same hits by distance, nearest first except for raw distances,
+     * which are meant to be sorted in ascending order. Under inner product the distances of the
+     * nearest documents are negative.
+     */
+    public void testScoreModes01() throws IOException {
+        float[] q = randomVectors(D, 4);
+        final int k = 1 + random().nextInt(20);
+        float[] distances = distances(q, false);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+        Map<Integer, Float> expected = search(query(q, NLIST, k));
+        for (ScoreMode scoreMode : ScoreMode.values()) {
+            ScoreDoc[] scoreDocs = searcher.search(query(q, NLIST, k, scoreMode), k).scoreDocs;
+            assertEquals(expected.size(), scoreDocs.length);
+            float previous = Float.NaN;
+            for (ScoreDoc scoreDoc : scoreDocs) {
+                final int id = id(reader, scoreDoc.doc);
+                assertTrue(expected.containsKey(id));
+                final float distance = distances[id];
+                final float eps = 1e-4f * (1 + Math.abs(distance));
+                assertEquals(scoreMode.score(distance), scoreDoc.score, 1e-4f * (1 + Math.abs(scoreDoc.score)));
+                if (!Float.isNaN(previous)) {
+                    if (scoreMode == ScoreMode.DISTANCE) {
+                        assertTrue(scoreMode + ": " + previous + " before " + distance, previous >= distance - eps);
+                    } else {
+                        assertTrue(scoreMode + ": " + previous + " before " + distance, previous <= distance + eps);
+                    }
+                }
+                previous = distance;
+            }
+        }
+    }
+
+    public void testRerank01() throws IOException {
+        float[] q = randomVectors(D, 4);
+        final int k = 1 + random().nextInt(20);
+        // every document is re-ranked, so the hits are the exact nearest ones
+        Map<Integer, Float> hits = search(query(q, NLIST, k, vectors.length, null, 0, 0, null, null, null));
+        assertNearest(hits, inLists(probes(q, NLIST)), distances(q, true), k);
+    }
+
+    public void testFilter01() throws IOException {
+        float[] q = randomVectors(D, 4);
+        final int k = 1 + random().nextInt(20);
+        Query filter = new TermQuery(new Term("color", "red"));
+        boolean[] candidates = inLists(probes(q, NLIST));
+        for (int i = 0; i < candidates.length; ++i) {
+            candidates[i] &= red[i];
+        }
+        // probing all lists, the hits are the nearest red documents
+        Map<Integer, Float> hits = search(query(q, NLIST, k, 0, filter, 0, 0, null, null, null));
+        assertNearest(hits, candidates, distances(q, false), k);
+
+        // probing one list at first, more are probed until k red documents are found
+        int reds = 0;
+        for (boolean candidate : candidates) {
+            reds += candidate ? 1 : 0;
+        }
+        hits = search(query(q, 1, k, 0, filter, NLIST, 0, null, null, null));
+        assertEquals(Math.min(k, reds), hits.size());
+        for (int id : hits.keySet()) {
+            assertTrue(red[id]);
+        }
+    }
+
+    public void testParallelEqualsSerial01() throws IOException {
+        ParallelScan scan = new ParallelScan(Settings.builder()
+                .put(ParallelScan.PARALLELISM_SETTING.getKey(), 2 + random().nextInt(4)).build());
+        ThreadPool threadPool = new ThreadPool(Settings.builder().put("node.name", getTestName()).build(),
+                ParallelScan.executorBuilder(Settings.EMPTY));
+        try {
+            scan.start(threadPool, new ClusterSettings(Settings.EMPTY,
+                    Collections.singleton(ParallelScan.PARALLELISM_SETTING)));
+            for (int iter = 0; iter < 10; ++iter) {
+                float[] q = randomVectors(D, 4);
+                final int nprobe = 1 + random().nextInt(NLIST);
+                final int k = 1 + random().nextInt(20);
+                assertEquals(search(query(q, nprobe, k)),
+                        search(query(q, nprobe, k, 0, null, 0, 0, scan, null, null)));
+            }
+        } finally {
+            ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    public void testPruning01() throws IOException {
+        AnnSearchMetrics metrics = new AnnSearchMetrics();
+        for (int iter = 0; iter < 10; ++iter) {
+            float[] q = randomVectors(D, 4);
+            final int k = 1 + random().nextInt(5);
+            Map<Integer, Float> hits = search(query(q, NLIST, k, 0, null, 0, 0, null, metrics, null));
+            assertNearest(hits, inLists(probes(q, NLIST)), distances(q, false), k);
+        }
+        AnnSearchStats stats = metrics.stats();
+        assertEquals(10, stats.getQueries());
+        assertEquals(10 * NLIST, stats.getProbedLists());
+        // few hits out of hundreds of documents, so the sums of some are given up or skipped
+        assertTrue(stats.getPrunedCandidates() + stats.getSkippedLists() > 0);
+    }
+
+    public void testMinCandidates01() throws IOException {
+        float[] q = randomVectors(D, 4);
+        final int k = 1 + random().nextInt(20);
+        final int minCandidates = 1 + random().nextInt(vectors.length);
+        final int maxNprobe = 1 + random().nextInt(NLIST);
+        int[] nearest = probes(q, NLIST);
+        // document frequencies still count deleted documents
+        int[] docFreqs = new int[NLIST];
+        for (int list : lists) {
+            docFreqs[list]++;
+        }
+        int expected = 0;
+        for (long sum = 0; expected < maxNprobe && (expected == 0 || sum < minCandidates); ++expected) {
+            sum += docFreqs[nearest[expected]];
+        }
+
+        AnnSearchMetrics metrics = new AnnSearchMetrics();
+        Map<Integer, Float> hits = search(query(q, 1, k, 0, null, maxNprobe, minCandidates, null, metrics, null));
+        assertEquals(expected, metrics.stats().getProbedLists());
+        assertNearest(hits, inLists(Arrays.copyOf(nearest, expected)), distances(q, false), k);
+    }
+
+    public void testResultCache01() throws IOException {
+        ResultCache resultCache = new ResultCache(Settings.builder()
+                .put(ResultCache.SIZE_SETTING.getKey(), "1mb").build());
+        float[] q = randomVectors(D, 4);
+        final int k = 1 + random().nextInt(20);
+        Query query = query(q, 2, k, 0, null, 0, 0, null, null, resultCache);
+        assertFalse(query.rewrite(reader).toString().contains("ivfpq[cached]"));
+        assertEquals(1, resultCache.stats().getCount());
+        Map<Integer, Float> hits = search(query);
+
+        // an equal query is answered from the cache
+        Query equal = query(q, 2, k, 0, null, 0, 0, null, null, resultCache);
+        assertEquals(query, equal);
+        assertTrue(equal.rewrite(reader).toString().contains("ivfpq[cached]"));
+        assertEquals(hits, search(equal));
+        assertEquals(1, resultCache.stats().getCount());
+        assertTrue(resultCache.stats().getHits() >= 1);
+
+        // another query or another reader miss
+        assertFalse(query(q, 3, k, 0, null, 0, 0, null, null, resultCache).rewrite(reader).toString()
+                .contains("ivfpq[cached]"));
+        assertEquals(2, resultCache.stats().getCount());
+        try (IndexReader other = DirectoryReader.open(directory)) {
+            assertFalse(query.rewrite(other).toString().contains("ivfpq[cached]"));
+            assertEquals(hits, search(query, other));
+            assertEquals(3, resultCache.stats().getCount());
+        }
+        // closing a reader drops its entries
+        assertEquals(2, resultCache.stats().getCount());
+    }
+
+    /**
+     * Searching many vectors at once gives each of them the hits of its own query.
+     */
+    public void testBatchSearch01() throws IOException {
+        final int n = 1 + random().nextInt(100);
+        final int nprobe = 1 + random().nextInt(NLIST);
+        final int k = 1 + random().nextInt(20);
+        float[] batch = randomVectors(n * D, 4);
+        IvfpqBatchSearch.Hits[] hits = IvfpqBatchSearch.search(reader, FIELD, analyzer, batch, n, nprobe, k);
+        assertEquals(n, hits.length);
+        for (int i = 0; i < n; ++i) {
+            Map<Integer, Float> expected = search(query(Arrays.copyOfRange(batch, i * D, (i + 1) * D), nprobe, k));
+            Map<Integer, Float> found = new HashMap<>();
+            for (int j = 0; j < hits[i].size(); ++j) {
+                found.put(id(reader, hits[i].doc(j)), hits[i].distance(j));
+                assertTrue(j == 0 || hits[i].distance(j - 1) <= hits[i].distance(j));
+            }
+            assertEquals(expected, found);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.elasticsearch.search;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.util.Arrays;
+
+public class ScoreModeTests extends LuceneTestCase {
+
+    public void testScore01() {
+        assertEquals(1F, ScoreMode.SIMILARITY.score(0), 0F);
+        assertEquals(0.25F, ScoreMode.SIMILARITY.score(3), 0F);
+        // inner product distances are negative, nearer than zero scores above one
+        assertEquals(3F, ScoreMode.SIMILARITY.score(-2), 0F);
+        assertEquals(-3F, ScoreMode.NEGATIVE_DISTANCE.score(3), 0F);
+        assertEquals(2F, ScoreMode.NEGATIVE_DISTANCE.score(-2), 0F);
+        assertEquals(-2F, ScoreMode.DISTANCE.score(-2), 0F);
+    }
+
+    /**
+     * Sorting by score, descending for similarities and negated distances and ascending for raw
+     * distances, gives the order of the distances, whatever their sign.
+     */
+    public void testScoreOrder01() {
+        float[] distances = new float[atLeast(100)];
+        for (int i = 0; i < distances.length; ++i) {
+            distances[i] = (random().nextFloat() - 0.5F) * 100;
+        }
+        distances[0] = 0;
+        Arrays.sort(distances);
+        for (ScoreMode scoreMode : ScoreMode.values()) {
+            for (int i = 1; i < distances.length; ++i) {
+                final float previous = scoreMode.score(distances[i - 1]);
+                final float score = scoreMode.score(distances[i]);
+                final String message = scoreMode + ": " + distances[i - 1] + " -> " + previous + ", "
+                        + distances[i] + " -> " + score;
+                if (scoreMode == ScoreMode.DISTANCE) {
+                    assertTrue(message, previous <= score);
+                } else {
+                    assertTrue(message, previous >= score);
+                }
+            }
+        }
+    }
+}